@@ -0,0 +1,128 @@
+package org.keycloak.multipleds.storage.user.benchmark;
+
+import jakarta.persistence.EntityManager;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.h2.jdbcx.JdbcDataSource;
+import org.keycloak.multipleds.storage.user.entities.UserEntity;
+import org.keycloak.multipleds.storage.user.utils.DigestAlgorithm;
+import org.keycloak.multipleds.storage.user.utils.PasswordHasher;
+import org.keycloak.multipleds.storage.user.utils.SaltedDigestPasswordHasher;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.sql.DataSource;
+
+/**
+ * Embedded H2 datasource with a legacy {@code users} table seeded with {@code user1..userN}, all sharing
+ * {@link #PASSWORD} hashed with {@link #SALT}
+ */
+public final class BenchmarkDatabase implements AutoCloseable {
+    public static final String SALT = "benchmark-salt";
+    public static final String PASSWORD = "password";
+
+    private final String name;
+    private final int firstUser;
+    private final int rows;
+    private final SessionFactory sessionFactory;
+
+    private BenchmarkDatabase(String name, int firstUser, int rows, SessionFactory sessionFactory) {
+        this.name = name;
+        this.firstUser = firstUser;
+        this.rows = rows;
+        this.sessionFactory = sessionFactory;
+    }
+
+    public static PasswordHasher passwordHasher() {
+        return new SaltedDigestPasswordHasher(DigestAlgorithm.SHA1, SALT);
+    }
+
+    public static String username(int i) {
+        return "user" + i;
+    }
+
+    public static String email(int i) {
+        return "user" + i + "@example.com";
+    }
+
+    /**
+     * @param name datasource name, ie. user-store
+     * @param rows number of users to seed
+     */
+    public static BenchmarkDatabase create(String name, int rows) throws SQLException {
+        return create(name, 1, rows);
+    }
+
+    /**
+     * @param name      datasource name, ie. user-store
+     * @param firstUser number of the first user, so that several datasources hold distinct users
+     * @param rows      number of users to seed
+     */
+    public static BenchmarkDatabase create(String name, int firstUser, int rows) throws SQLException {
+        String url = "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS users");
+            statement.execute("CREATE TABLE users (id VARCHAR(36) PRIMARY KEY, utente VARCHAR(255), name VARCHAR(255), " +
+                    "surname VARCHAR(255), email VARCHAR(255), password VARCHAR(64), attivo BOOLEAN)");
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO users " +
+                    "SELECT CAST(X AS VARCHAR), CONCAT('user', X), CONCAT('First', X), CONCAT('Last', X), " +
+                    "CONCAT('user', X, '@example.com'), ?, TRUE FROM SYSTEM_RANGE(?, ?)")) {
+                insert.setString(1, passwordHasher().encode(PASSWORD));
+                insert.setInt(2, firstUser);
+                insert.setInt(3, firstUser + rows - 1);
+                insert.executeUpdate();
+            }
+            statement.execute("CREATE UNIQUE INDEX users_utente ON users (utente)");
+            statement.execute("CREATE INDEX users_email ON users (email)");
+        }
+        SessionFactory sessionFactory = new Configuration()
+                .addAnnotatedClass(UserEntity.class)
+                .setProperty("hibernate.connection.url", url)
+                .setProperty("hibernate.connection.username", "sa")
+                .setProperty("hibernate.connection.password", "")
+                .setProperty("hibernate.hbm2ddl.auto", "none")
+                .setProperty("hibernate.show_sql", "false")
+                .buildSessionFactory();
+        return new BenchmarkDatabase(name, firstUser, rows, sessionFactory);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getFirstUser() {
+        return firstUser;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public EntityManager createEntityManager() {
+        return sessionFactory.createEntityManager();
+    }
+
+    /**
+     * Plain JDBC datasource without pooling, as used by the jdbc lookup engine
+     */
+    public DataSource createDataSource() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name);
+        dataSource.setUser("sa");
+        dataSource.setPassword("");
+        return dataSource;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        sessionFactory.close();
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:" + name, "sa", "");
+             Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.keycloak.multipleds.storage.user.benchmark;
+
+import jakarta.persistence.EntityManager;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.multipleds.storage.user.MultipleDSUserStorageProvider;
+import org.keycloak.multipleds.storage.user.cache.SearchCursorCache;
+import org.keycloak.multipleds.storage.user.cache.UserCountCache;
+import org.keycloak.multipleds.storage.user.cache.UserEntityCache;
+import org.keycloak.multipleds.storage.user.cache.UserLookupFilter;
+import org.keycloak.multipleds.storage.user.entities.JpaUserDAO;
+import org.keycloak.multipleds.storage.user.metrics.ProviderMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end {@code getUserByUsername}: remote lookup plus local user adapter creation, against stub
+ * Keycloak sessions whose local storage is kept in memory. Local users are created on first access,
+ * so after warm-up the benchmark measures the reuse path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CreateAdapterBenchmark {
+
+    @Param({"100000"})
+    public int rows;
+
+    /**
+     * Remote user cache size, 0 to query the datasource on every lookup
+     */
+    @Param({"0", "10000"})
+    public int cacheSize;
+
+    private BenchmarkDatabase database;
+    private UserProvider localStorage;
+    private UserEntityCache cache;
+    private ComponentModel model;
+    private RealmModel realm;
+
+    @Setup(Level.Trial)
+    public void seed() throws Exception {
+        database = BenchmarkDatabase.create("create-adapter-benchmark", rows);
+        localStorage = Stubs.localStorage();
+        cache = new UserEntityCache(cacheSize, 60);
+        model = new ComponentModel();
+        model.setId("create-adapter-benchmark");
+        realm = Stubs.realm("benchmark");
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() throws Exception {
+        database.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+        EntityManager entityManager;
+        MultipleDSUserStorageProvider provider;
+
+        @Setup(Level.Iteration)
+        public void open(CreateAdapterBenchmark benchmark) {
+            entityManager = benchmark.database.createEntityManager();
+            KeycloakSession session = Stubs.session(benchmark.localStorage);
+            provider = new MultipleDSUserStorageProvider(session, benchmark.model, BenchmarkDatabase.passwordHasher(),
+                    new JpaUserDAO(entityManager), benchmark.cache, ProviderMetrics.noop(), new UserLookupFilter(0, 0),
+                    new SearchCursorCache(0, 0), new UserCountCache(0, Runnable::run, () -> -1), Collections.emptyMap(), null);
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() {
+            provider.close();
+        }
+    }
+
+    @Benchmark
+    public UserModel getUserByUsername(Session session) {
+        int i = ThreadLocalRandom.current().nextInt(rows) + 1;
+        UserModel user = session.provider.getUserByUsername(realm, BenchmarkDatabase.username(i));
+        session.entityManager.clear();
+        return user;
+    }
+}
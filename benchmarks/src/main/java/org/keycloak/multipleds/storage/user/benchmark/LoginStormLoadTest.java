@@ -0,0 +1,243 @@
+package org.keycloak.multipleds.storage.user.benchmark;
+
+import org.HdrHistogram.Histogram;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.multipleds.storage.user.MultipleDSUserStorageProvider;
+import org.keycloak.multipleds.storage.user.cache.SearchCursorCache;
+import org.keycloak.multipleds.storage.user.cache.UserCountCache;
+import org.keycloak.multipleds.storage.user.cache.UserEntityCache;
+import org.keycloak.multipleds.storage.user.cache.UserLookupFilter;
+import org.keycloak.multipleds.storage.user.entities.JdbcUserDAO;
+import org.keycloak.multipleds.storage.user.entities.JpaUserDAO;
+import org.keycloak.multipleds.storage.user.entities.UserDAO;
+import org.keycloak.multipleds.storage.user.metrics.ProviderMetrics;
+import org.keycloak.multipleds.storage.user.utils.PasswordHasher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+
+/**
+ * Login storm against {@code MultipleDSUserStorageProvider}, one provider per embedded H2 datasource named as in
+ * {@code conf/quarkus.properties}, each seeded with its own users. Every worker thread runs logins back to back in a
+ * new session, as Keycloak does for a username/password form: {@code getUserByUsername} on each provider by priority
+ * until one finds the user, then {@code isValid} and {@code validate} on it. A share of the logins uses unknown users
+ * or wrong passwords.
+ * <p>
+ * Throughput and latency percentiles are reported by datasource of the user, unknown users apart. The load is closed
+ * loop: latencies do not include the time logins would have waited in a queue at a higher arrival rate.
+ * <p>
+ * Options as {@code --name=value}: {@code datasources} (user-store,user-store2), {@code rows} per datasource
+ * (1000000), {@code threads} (32), {@code warmup} and {@code duration} in seconds (10 and 60), {@code unknownUsers}
+ * and {@code wrongPasswords} ratios (0.1 and 0.1), {@code cacheSize} (10000) and {@code engine} (jpa or jdbc).
+ */
+public class LoginStormLoadTest {
+    private static final String UNKNOWN = "unknown";
+    private static final String WRONG_PASSWORD = "wrong-password";
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private final List<BenchmarkDatabase> databases;
+    private final List<ComponentModel> models = new ArrayList<>();
+    private final List<UserEntityCache> caches = new ArrayList<>();
+    private final List<DataSource> dataSources = new ArrayList<>();
+    private final PasswordHasher passwordHasher = BenchmarkDatabase.passwordHasher();
+    private final UserProvider localStorage = Stubs.localStorage();
+    private final RealmModel realm = Stubs.realm("load-test");
+    private final int totalUsers;
+    private final double unknownUsers;
+    private final double wrongPasswords;
+    private final boolean jdbc;
+    private volatile boolean running = true;
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    public LoginStormLoadTest(List<BenchmarkDatabase> databases, int cacheSize, double unknownUsers, double wrongPasswords, boolean jdbc) {
+        this.databases = databases;
+        this.unknownUsers = unknownUsers;
+        this.wrongPasswords = wrongPasswords;
+        this.jdbc = jdbc;
+        int users = 0;
+        for (BenchmarkDatabase database : databases) {
+            ComponentModel model = new ComponentModel();
+            model.setId(database.getName());
+            models.add(model);
+            caches.add(new UserEntityCache(cacheSize, 30));
+            dataSources.add(database.createDataSource());
+            users += database.getRows();
+        }
+        this.totalUsers = users;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.replaceFirst("^--", "").split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Invalid option " + arg + ", expected --name=value");
+            }
+            options.put(option[0], option[1]);
+        }
+        String[] names = options.getOrDefault("datasources", "user-store,user-store2").split(",");
+        int rows = Integer.parseInt(options.getOrDefault("rows", "1000000"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "32"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "10"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "60"));
+        double unknownUsers = Double.parseDouble(options.getOrDefault("unknownUsers", "0.1"));
+        double wrongPasswords = Double.parseDouble(options.getOrDefault("wrongPasswords", "0.1"));
+        int cacheSize = Integer.parseInt(options.getOrDefault("cacheSize", "10000"));
+        boolean jdbc = "jdbc".equals(options.getOrDefault("engine", "jpa"));
+
+        List<BenchmarkDatabase> databases = new ArrayList<>();
+        try {
+            for (int i = 0; i < names.length; i++) {
+                long start = System.currentTimeMillis();
+                databases.add(BenchmarkDatabase.create(names[i].trim(), i * rows + 1, rows));
+                System.out.println("Seeded " + rows + " users in " + names[i].trim() + " in " + (System.currentTimeMillis() - start) + " ms");
+            }
+            new LoginStormLoadTest(databases, cacheSize, unknownUsers, wrongPasswords, jdbc).run(threads, warmup, duration);
+        } finally {
+            for (BenchmarkDatabase database : databases) {
+                database.close();
+            }
+        }
+    }
+
+    public void run(int threads, int warmupSeconds, int durationSeconds) throws InterruptedException {
+        System.out.println("Running " + threads + " threads, " + warmupSeconds + " s warm-up and " + durationSeconds + " s measurement");
+        List<Worker> workers = new ArrayList<>(threads);
+        List<Thread> workerThreads = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker();
+            Thread thread = new Thread(worker, "login-storm-" + i);
+            workers.add(worker);
+            workerThreads.add(thread);
+            thread.start();
+        }
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+        measureFrom = System.nanoTime();
+        TimeUnit.SECONDS.sleep(durationSeconds);
+        running = false;
+        long elapsed = System.nanoTime() - measureFrom;
+        for (Thread thread : workerThreads) {
+            thread.join();
+        }
+        report(workers, elapsed);
+    }
+
+    private void report(List<Worker> workers, long elapsedNanos) {
+        Map<String, Histogram> latencies = new LinkedHashMap<>();
+        for (BenchmarkDatabase database : databases) {
+            latencies.put(database.getName(), histogram());
+        }
+        latencies.put(WRONG_PASSWORD, histogram());
+        latencies.put(UNKNOWN, histogram());
+        Histogram total = histogram();
+        long errors = 0;
+        for (Worker worker : workers) {
+            for (Map.Entry<String, Histogram> latency : worker.latencies.entrySet()) {
+                latencies.get(latency.getKey()).add(latency.getValue());
+                total.add(latency.getValue());
+            }
+            errors += worker.errors;
+        }
+        latencies.put("total", total);
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("%-16s %10s %10s %9s %9s %9s %9s", "users", "logins", "logins/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (Map.Entry<String, Histogram> latency : latencies.entrySet()) {
+            Histogram histogram = latency.getValue();
+            System.out.println(String.format("%-16s %10d %10.0f %9.3f %9.3f %9.3f %9.3f", latency.getKey(), histogram.getTotalCount(),
+                    histogram.getTotalCount() / seconds, histogram.getValueAtPercentile(50) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getMaxValue() / 1000.0));
+        }
+        System.out.println("Errors and unexpected login results: " + errors);
+    }
+
+    private static Histogram histogram() {
+        return new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+    }
+
+    /**
+     * Providers of every datasource for a new session, by priority
+     */
+    private List<MultipleDSUserStorageProvider> openSession() {
+        KeycloakSession session = Stubs.session(localStorage);
+        List<MultipleDSUserStorageProvider> providers = new ArrayList<>(databases.size());
+        for (int i = 0; i < databases.size(); i++) {
+            UserDAO userDAO = new JpaUserDAO(databases.get(i).createEntityManager());
+            if (jdbc) {
+                userDAO = new JdbcUserDAO(dataSources.get(i), userDAO, ProviderMetrics.noop());
+            }
+            providers.add(new MultipleDSUserStorageProvider(session, models.get(i), passwordHasher, userDAO, caches.get(i),
+                    ProviderMetrics.noop(), new UserLookupFilter(0, 0), new SearchCursorCache(0, 0),
+                    new UserCountCache(0, Runnable::run, () -> -1), Collections.emptyMap(), null));
+        }
+        return providers;
+    }
+
+    private class Worker implements Runnable {
+        private final Map<String, Histogram> latencies = new HashMap<>();
+        private long errors;
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (running) {
+                boolean unknown = random.nextDouble() < unknownUsers;
+                boolean wrongPassword = !unknown && random.nextDouble() < wrongPasswords;
+                // unknown users are numbered after the users of the last datasource
+                int user = 1 + random.nextInt(totalUsers) + (unknown ? totalUsers : 0);
+                long start = System.nanoTime();
+                String outcome;
+                try {
+                    outcome = login(BenchmarkDatabase.username(user), wrongPassword ? "wrong" : BenchmarkDatabase.PASSWORD);
+                } catch (RuntimeException e) {
+                    errors++;
+                    continue;
+                }
+                long end = System.nanoTime();
+                String expected = unknown ? UNKNOWN : wrongPassword ? WRONG_PASSWORD : null;
+                if (expected != null ? !expected.equals(outcome) : outcome.equals(UNKNOWN) || outcome.equals(WRONG_PASSWORD)) {
+                    errors++;
+                }
+                if (start >= measureFrom) {
+                    latencies.computeIfAbsent(outcome, key -> histogram())
+                            .recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(end - start), HIGHEST_TRACKABLE_MICROS));
+                }
+            }
+        }
+
+        /**
+         * @return datasource of the user, or whether the user is unknown or the password wrong
+         */
+        private String login(String username, String password) {
+            List<MultipleDSUserStorageProvider> providers = openSession();
+            try {
+                for (int i = 0; i < providers.size(); i++) {
+                    MultipleDSUserStorageProvider provider = providers.get(i);
+                    UserModel user = provider.getUserByUsername(realm, username);
+                    if (user == null) continue;
+                    if (!provider.isValid(realm, user, UserCredentialModel.password(password))) {
+                        return WRONG_PASSWORD;
+                    }
+                    return provider.validate(realm, user) != null ? databases.get(i).getName() : UNKNOWN;
+                }
+                return UNKNOWN;
+            } finally {
+                for (MultipleDSUserStorageProvider provider : providers) {
+                    provider.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.keycloak.multipleds.storage.user.benchmark;
+
+import org.keycloak.multipleds.storage.user.utils.PasswordHasher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Salted hashing and password validation, as done by {@code isValid} and {@code updateCredential}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordHasherBenchmark {
+
+    private PasswordHasher hasher;
+    private String encoded;
+
+    @Setup
+    public void setup() {
+        hasher = BenchmarkDatabase.passwordHasher();
+        encoded = hasher.encode(BenchmarkDatabase.PASSWORD);
+    }
+
+    @Benchmark
+    public String encode() {
+        return hasher.encode(BenchmarkDatabase.PASSWORD);
+    }
+
+    @Benchmark
+    public boolean matchesValid() {
+        return hasher.matches(BenchmarkDatabase.PASSWORD, encoded);
+    }
+
+    @Benchmark
+    public boolean matchesInvalid() {
+        return hasher.matches("wrong-password", encoded);
+    }
+
+    /**
+     * Former SHA1Utils implementation, kept as a baseline for comparison
+     */
+    @Benchmark
+    public boolean legacyIsValid() throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        md.update((BenchmarkDatabase.SALT + BenchmarkDatabase.PASSWORD).getBytes());
+        return encoded.equals(String.format("%040x", new BigInteger(1, md.digest())));
+    }
+}
@@ -0,0 +1,163 @@
+package org.keycloak.multipleds.storage.user.benchmark;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.DatastoreProvider;
+import org.keycloak.storage.datastore.DefaultDatastoreProvider;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Minimal in-memory Keycloak session, realm and local user storage, just enough to drive
+ * {@code MultipleDSUserStorageProvider} outside of a Keycloak server
+ */
+public final class Stubs {
+
+    private Stubs() {
+    }
+
+    public static RealmModel realm(String name) {
+        return proxy(RealmModel.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getId":
+                case "getName":
+                    return name;
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * Session whose local user storage is the given {@link UserProvider}
+     */
+    public static KeycloakSession session(UserProvider localStorage) {
+        KeycloakSession[] session = new KeycloakSession[1];
+        DefaultDatastoreProvider[] datastore = new DefaultDatastoreProvider[1];
+        session[0] = proxy(KeycloakSession.class, (method, args) -> {
+            if ("getProvider".equals(method.getName()) && args.length == 1) {
+                if (args[0] == DatastoreProvider.class) {
+                    if (datastore[0] == null) {
+                        datastore[0] = new DefaultDatastoreProvider(null, session[0]);
+                    }
+                    return datastore[0];
+                }
+                if (args[0] == UserProvider.class) {
+                    return localStorage;
+                }
+            }
+            return defaultValue(method);
+        });
+        return session[0];
+    }
+
+    /**
+     * Local user storage keeping users in a map, shared by all sessions of a benchmark
+     */
+    public static UserProvider localStorage() {
+        Map<String, UserModel> users = new ConcurrentHashMap<>();
+        return proxy(UserProvider.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getUserByUsername":
+                    return users.get((String) args[1]);
+                case "addUser":
+                    String username = (String) args[args.length == 2 ? 1 : 2];
+                    return users.computeIfAbsent(username, Stubs::user);
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    public static UserModel user(String username) {
+        Map<String, Object> properties = new ConcurrentHashMap<>();
+        Map<String, List<String>> attributes = new ConcurrentHashMap<>();
+        properties.put("Id", UUID.randomUUID().toString());
+        properties.put("Username", username);
+        SubjectCredentialManager credentialManager = proxy(SubjectCredentialManager.class, (method, args) -> defaultValue(method));
+        return proxy(UserModel.class, (method, args) -> {
+            String name = method.getName();
+            switch (name) {
+                case "credentialManager":
+                    return credentialManager;
+                case "setSingleAttribute":
+                    attributes.put((String) args[0], new ArrayList<>(Collections.singletonList((String) args[1])));
+                    return null;
+                case "setAttribute":
+                    attributes.put((String) args[0], new ArrayList<>((List<String>) args[1]));
+                    return null;
+                case "removeAttribute":
+                    attributes.remove((String) args[0]);
+                    return null;
+                case "getFirstAttribute":
+                    List<String> values = attributes.get((String) args[0]);
+                    return values == null || values.isEmpty() ? null : values.get(0);
+                case "getAttributeStream":
+                    return attributes.getOrDefault((String) args[0], Collections.emptyList()).stream();
+                case "getAttributes":
+                    return attributes;
+                default:
+                    if (name.startsWith("set") && args != null && args.length == 1) {
+                        if (args[0] == null) {
+                            properties.remove(name.substring(3));
+                        } else {
+                            properties.put(name.substring(3), args[0]);
+                        }
+                        return null;
+                    }
+                    if (name.startsWith("get") && (args == null || args.length == 0)) {
+                        Object value = properties.get(name.substring(3));
+                        return value != null ? value : defaultValue(method);
+                    }
+                    if (name.startsWith("is") && (args == null || args.length == 0)) {
+                        Object value = properties.get(name.substring(2));
+                        return value != null ? value : defaultValue(method);
+                    }
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    private interface Handler {
+        Object invoke(Method method, Object[] args) throws Throwable;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    return handler.invoke(method, args != null ? args : new Object[0]);
+            }
+        });
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == Stream.class) return Stream.empty();
+        if (type == List.class) return Collections.emptyList();
+        if (type == Map.class) return Collections.emptyMap();
+        return null;
+    }
+}
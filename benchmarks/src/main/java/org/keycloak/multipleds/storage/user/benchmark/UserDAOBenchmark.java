@@ -0,0 +1,118 @@
+package org.keycloak.multipleds.storage.user.benchmark;
+
+import jakarta.persistence.EntityManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.multipleds.storage.user.entities.JdbcUserDAO;
+import org.keycloak.multipleds.storage.user.entities.JpaUserDAO;
+import org.keycloak.multipleds.storage.user.entities.UserDAO;
+import org.keycloak.multipleds.storage.user.entities.UserEntity;
+import org.keycloak.multipleds.storage.user.metrics.ProviderMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * {@link UserDAO} lookups against an embedded H2 {@code users} table. The persistence context is cleared after
+ * every operation, as each Keycloak request gets its own entity manager.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class UserDAOBenchmark {
+
+    @Param({"100000", "1000000", "10000000"})
+    public int rows;
+
+    /**
+     * Lookup engine, jdbc runs point lookups without the entity manager
+     */
+    @Param({"jpa", "jdbc"})
+    public String engine;
+
+    private BenchmarkDatabase database;
+
+    @Setup(Level.Trial)
+    public void seed() throws Exception {
+        database = BenchmarkDatabase.create("user-dao-benchmark", rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() throws Exception {
+        database.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+        EntityManager entityManager;
+        UserDAO userDAO;
+
+        @Setup(Level.Iteration)
+        public void open(UserDAOBenchmark benchmark) {
+            entityManager = benchmark.database.createEntityManager();
+            userDAO = new JpaUserDAO(entityManager);
+            if ("jdbc".equals(benchmark.engine)) {
+                userDAO = new JdbcUserDAO(benchmark.database.createDataSource(), userDAO, ProviderMetrics.noop());
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() {
+            userDAO.close();
+        }
+    }
+
+    private int randomUser() {
+        return ThreadLocalRandom.current().nextInt(rows) + 1;
+    }
+
+    @Benchmark
+    public UserEntity findByUsername(Session session) {
+        UserEntity entity = session.userDAO.findByUsername(BenchmarkDatabase.username(randomUser()));
+        session.entityManager.clear();
+        return entity;
+    }
+
+    @Benchmark
+    public UserEntity findByUsernameUnknown(Session session) {
+        UserEntity entity = session.userDAO.findByUsername("unknown" + randomUser());
+        session.entityManager.clear();
+        return entity;
+    }
+
+    @Benchmark
+    public List<UserEntity> findStreamAllByEmail(Session session) {
+        List<UserEntity> page = session.userDAO.findStreamAll(
+                Collections.singletonMap(UserModel.EMAIL, BenchmarkDatabase.email(randomUser())), 0, 10)
+                .collect(Collectors.toList());
+        session.entityManager.clear();
+        return page;
+    }
+
+    @Benchmark
+    public List<UserEntity> findStreamAllBySearch(Session session) {
+        List<UserEntity> page = session.userDAO.findStreamAll(
+                Collections.singletonMap(UserModel.SEARCH, BenchmarkDatabase.username(randomUser())), 0, 10)
+                .collect(Collectors.toList());
+        session.entityManager.clear();
+        return page;
+    }
+}
@@ -6,21 +6,37 @@ import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputUpdater;
 import org.keycloak.credential.CredentialInputValidator;
-import org.keycloak.credential.CredentialModel;
+import org.keycloak.credential.CredentialProvider;
+import org.keycloak.credential.PasswordCredentialProvider;
+import org.keycloak.credential.PasswordCredentialProviderFactory;
 import org.keycloak.models.*;
 import org.keycloak.models.cache.CachedUserModel;
+import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.multipleds.storage.user.cache.SearchCursorCache;
+import org.keycloak.multipleds.storage.user.cache.UserCountCache;
+import org.keycloak.multipleds.storage.user.cache.UserEntityCache;
+import org.keycloak.multipleds.storage.user.cache.UserLookupFilter;
+import org.keycloak.multipleds.storage.user.entities.DatasourceGuard;
+import org.keycloak.multipleds.storage.user.entities.DatasourceUnavailableException;
+import org.keycloak.multipleds.storage.user.entities.PasswordWriteBehind;
 import org.keycloak.multipleds.storage.user.entities.UserDAO;
 import org.keycloak.multipleds.storage.user.entities.UserEntity;
+import org.keycloak.multipleds.storage.user.metrics.ProviderMetrics;
 import org.keycloak.multipleds.storage.user.models.MultipleDSUserModelDelegate;
-import org.keycloak.multipleds.storage.user.utils.SHA1Utils;
+import org.keycloak.multipleds.storage.user.utils.JpaLocalUsers;
+import org.keycloak.multipleds.storage.user.utils.PasswordHasher;
 import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.user.ImportedUserValidation;
+import org.keycloak.storage.user.SynchronizationResult;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
 import org.keycloak.storage.UserStoragePrivateUtil;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 //@Stateful
 public class MultipleDSUserStorageProvider implements UserStorageProvider,
@@ -29,25 +45,75 @@ public class MultipleDSUserStorageProvider implements UserStorageProvider,
         CredentialInputUpdater,
         CredentialInputValidator,
         ImportedUserValidation {
+    /**
+     * Local user attribute holding the fingerprint of the remote row it was last reconciled with
+     */
+    public static final String FINGERPRINT_ATTRIBUTE = "multipleds.fingerprint";
+    /**
+     * Local user attribute marking a password update not written to the datasource yet. The legacy hash itself is
+     * only kept in memory.
+     */
+    public static final String PASSWORD_PENDING_ATTRIBUTE = "multipleds.passwordPending";
+    /**
+     * Local user attribute holding the time, in milliseconds since the epoch, the user was last validated against
+     * the datasource
+     */
+    public static final String VALIDATED_AT_ATTRIBUTE = "multipleds.validatedAt";
+
+    // remote users whose local copies are resolved with a single query when searching
+    private static final int ADAPTER_BATCH_SIZE = 100;
+
     private final Logger logger = Logger.getLogger(MultipleDSUserStorageProvider.class);
 
     private final ComponentModel model;
     private final KeycloakSession session;
-    private final String salt;
+    private final PasswordHasher passwordHasher;
     private UserDAO userDAO;
+    private final UserEntityCache cache;
+    private final ProviderMetrics metrics;
+    private final UserLookupFilter lookupFilter;
+    private final SearchCursorCache searchCursors;
+    private final UserCountCache userCount;
+    private final Map<String, DatasourceGuard> guards;
+    private final PasswordWriteBehind writeBehind;
+    private final boolean migrateCredentials;
+    private final boolean approximateCount;
+    private final long revalidationMillis;
 
-    public MultipleDSUserStorageProvider(KeycloakSession session, ComponentModel model, String salt, UserDAO userDAO) {
+    public MultipleDSUserStorageProvider(KeycloakSession session, ComponentModel model, PasswordHasher passwordHasher,
+                                         UserDAO userDAO, UserEntityCache cache, ProviderMetrics metrics,
+                                         UserLookupFilter lookupFilter, SearchCursorCache searchCursors,
+                                         UserCountCache userCount, Map<String, DatasourceGuard> guards,
+                                         PasswordWriteBehind writeBehind) {
         this.session = session;
         this.model = model;
-        this.salt = salt;
+        this.passwordHasher = passwordHasher;
         this.userDAO = userDAO;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.lookupFilter = lookupFilter;
+        this.searchCursors = searchCursors;
+        this.userCount = userCount;
+        this.guards = guards;
+        this.writeBehind = writeBehind;
+        this.migrateCredentials = model.get(MultipleDSUserStorageProviderFactory.MIGRATE_CREDENTIALS_PROPERTY, false);
+        this.approximateCount = model.get(MultipleDSUserStorageProviderFactory.APPROXIMATE_COUNT_PROPERTY, false);
+        this.revalidationMillis = TimeUnit.SECONDS.toMillis(Math.max(0, model.get(MultipleDSUserStorageProviderFactory.REVALIDATION_INTERVAL_PROPERTY, 0)));
     }
 
     @Override
     public UserModel getUserById(RealmModel realm, String id) {
-        UserEntity entity = userDAO.findById(id);
+        UserEntity entity = cache.getById(id);
         if (entity == null) {
-            logger.info("could not find user by id: " + id);
+            try {
+                entity = userDAO.findById(id);
+            } catch (DatasourceUnavailableException e) {
+                return unavailable(e, null);
+            }
+            cache.put(entity);
+        }
+        if (entity == null) {
+            logger.debugf("could not find user by id: %s", id);
             return null;
         }
         return createAdapter(realm, entity);
@@ -59,7 +125,21 @@ public class MultipleDSUserStorageProvider implements UserStorageProvider,
     }
 
     private UserEntity getUserEntityByUsername(String username) {
-        return userDAO.findByUsername(username);
+        if (!lookupFilter.mightContain(username)) {
+            logger.debugf("Username %s not in datasource lookup filter", username);
+            metrics.lookupSkipped();
+            return null;
+        }
+        UserEntity entity = cache.getByUsername(username);
+        if (entity == null) {
+            try {
+                entity = userDAO.findByUsername(username);
+            } catch (DatasourceUnavailableException e) {
+                return unavailable(e, null);
+            }
+            cache.put(entity);
+        }
+        return entity;
     }
 
     private UserModel createAdapter(RealmModel realm, UserModel local) {
@@ -69,49 +149,247 @@ public class MultipleDSUserStorageProvider implements UserStorageProvider,
     // https://www.keycloak.org/docs/latest/upgrading/#changes-in-code-keycloaksession-code
     private UserModel createAdapter(RealmModel realm, UserEntity userEntity) {
         if (userEntity == null) return null;
-        UserModel local = UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, userEntity.getUsername());
+        return new MultipleDSUserModelDelegate(importUser(realm, userEntity, getLocalUser(realm, userEntity), null), userEntity);
+    }
+
+    /**
+     * Adapters of a page of remote users, whose local copies are resolved with a single query
+     */
+    private Stream<UserModel> createAdapters(RealmModel realm, List<UserEntity> userEntities) {
+        List<UserModel> locals = importPage(realm, userEntities, null);
+        List<UserModel> adapters = new ArrayList<>(userEntities.size());
+        for (int i = 0; i < userEntities.size(); i++) {
+            adapters.add(new MultipleDSUserModelDelegate(locals.get(i), userEntities.get(i)));
+        }
+        return adapters.stream();
+    }
+
+    /**
+     * Imports the given remote users into local storage, creating missing ones and updating changed ones
+     *
+     * @return number of added and updated users
+     */
+    public SynchronizationResult importUsers(RealmModel realm, List<UserEntity> userEntities) {
+        SynchronizationResult result = new SynchronizationResult();
+        importPage(realm, userEntities, result);
+        return result;
+    }
+
+    /**
+     * Reconciles the local copies of the given remote users, resolved with a single query when local storage is
+     * Keycloak's JPA store, or one by one through local storage otherwise
+     *
+     * @return local users, in the order of the remote ones
+     */
+    private List<UserModel> importPage(RealmModel realm, List<UserEntity> userEntities, SynchronizationResult result) {
+        Map<String, UserModel> locals = getLocalUsers(realm, userEntities);
+        List<UserModel> imported = new ArrayList<>(userEntities.size());
+        for (UserEntity userEntity : userEntities) {
+            UserModel local = locals != null ? locals.get(KeycloakModelUtils.toLowerCaseSafe(userEntity.getUsername()))
+                    : getLocalUser(realm, userEntity);
+            imported.add(importUser(realm, userEntity, local, result));
+        }
+        return imported;
+    }
+
+    private UserModel getLocalUser(RealmModel realm, UserEntity userEntity) {
+        return UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, userEntity.getUsername());
+    }
+
+    /**
+     * @return local users with the usernames of the given remote users by lowercase username, null when they have to
+     * be looked up one by one, see {@link JpaLocalUsers}
+     */
+    private Map<String, UserModel> getLocalUsers(RealmModel realm, List<UserEntity> userEntities) {
+        Set<String> usernames = new HashSet<>();
+        for (UserEntity userEntity : userEntities) {
+            // Keycloak stores usernames in lowercase
+            usernames.add(KeycloakModelUtils.toLowerCaseSafe(userEntity.getUsername()));
+        }
+        return JpaLocalUsers.findByUsernames(session, realm, usernames);
+    }
+
+    /**
+     * Reconciles changed remote users: enabled ones are imported like {@link #importUsers}, the local copies of
+     * disabled ones are removed
+     *
+     * @return number of added, updated and removed users
+     */
+    public SynchronizationResult importChangedUsers(RealmModel realm, List<UserEntity> userEntities) {
+        SynchronizationResult result = new SynchronizationResult();
+        if (!userEntities.isEmpty()) {
+            // pages served before the changes no longer end where their cursors say
+            searchCursors.clear();
+        }
+        for (UserEntity userEntity : userEntities) {
+            cache.invalidateUsername(userEntity.getUsername());
+            UserModel local = getLocalUser(realm, userEntity);
+            if (userEntity.isEnabled()) {
+                importUser(realm, userEntity, local, result);
+                continue;
+            }
+            if (local != null && model.getId().equals(local.getFederationLink())) {
+                logger.debugf("Removing local user %s disabled on remote", local.getUsername());
+                removeLocalUser(realm, local, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the local copies of users no longer found on any datasource by a full synchronization. Users since
+     * unlinked from this provider are kept.
+     *
+     * @param usernames local usernames not found on remote
+     */
+    public SynchronizationResult removeStaleUsers(RealmModel realm, List<String> usernames) {
+        SynchronizationResult result = new SynchronizationResult();
+        if (!usernames.isEmpty()) {
+            searchCursors.clear();
+        }
+        UserProvider userLocalStorage = UserStoragePrivateUtil.userLocalStorage(session);
+        for (String username : usernames) {
+            cache.invalidateUsername(username);
+            UserModel local = userLocalStorage.getUserByUsername(realm, username);
+            if (local != null && model.getId().equals(local.getFederationLink())) {
+                logger.debugf("Removing local user %s deleted on remote", username);
+                removeLocalUser(realm, local, result);
+            }
+        }
+        return result;
+    }
+
+    private void removeLocalUser(RealmModel realm, UserModel local, SynchronizationResult result) {
+        UserStoragePrivateUtil.userLocalStorage(session).removeUser(realm, local);
+        metrics.userEvicted();
+        result.increaseRemoved();
+    }
+
+    /**
+     * Reconciles the local copy of a remote user. The fingerprint of the remote row is stored on the local user,
+     * which is only written to when it is missing or its fingerprint changed.
+     *
+     * @param local  local copy of the remote user, null if missing
+     * @param result optional synchronization result counting added and updated users
+     */
+    private UserModel importUser(RealmModel realm, UserEntity userEntity, UserModel local, SynchronizationResult result) {
+        String fingerprint = userEntity.fingerprint();
         if (local == null) {
-            logger.info("Creating local user " + userEntity.getUsername());
-            local = UserStoragePrivateUtil.userLocalStorage(session).addUser(realm, userEntity.getUsername());
+            local = addLocalUser(realm, userEntity, fingerprint);
+            metrics.localUserCreated();
+            if (result != null) result.increaseAdded();
+        } else if (fingerprint.equals(local.getFirstAttribute(FINGERPRINT_ATTRIBUTE))) {
+            logger.debugf("Reusing local user %s", local.getUsername());
+            metrics.localUserReused();
+        } else {
+            updateLocalUser(local, userEntity, fingerprint);
+            metrics.localUserUpdated();
+            if (result != null) result.increaseUpdated();
+        }
+        return local;
+    }
+
+    private UserModel addLocalUser(RealmModel realm, UserEntity userEntity, String fingerprint) {
+        logger.debugf("Creating local user %s", userEntity.getUsername());
+        UserModel local = UserStoragePrivateUtil.userLocalStorage(session).addUser(realm, userEntity.getUsername());
+        local.setFirstName(userEntity.getFirstName());
+        local.setLastName(userEntity.getLastName());
+        local.setEnabled(userEntity.isEnabled());
+        local.setFederationLink(model.getId());
+        if (!ObjectUtil.isBlank(userEntity.getEmail())) {
+            local.setEmail(userEntity.getEmail().trim());
+        }
+        local.setSingleAttribute(FINGERPRINT_ATTRIBUTE, fingerprint);
+        if (revalidationMillis > 0) {
+            // just read from the datasource
+            local.setSingleAttribute(VALIDATED_AT_ATTRIBUTE, Long.toString(System.currentTimeMillis()));
+        }
+        return local;
+    }
+
+    /**
+     * Copies every mapped field that differs from the remote row, so that they are flushed in a single update
+     */
+    private void updateLocalUser(UserModel local, UserEntity userEntity, String fingerprint) {
+        logger.debugf("Updating local user %s from remote", local.getUsername());
+        if (!Objects.equals(local.getFirstName(), userEntity.getFirstName())) {
             local.setFirstName(userEntity.getFirstName());
+        }
+        if (!Objects.equals(local.getLastName(), userEntity.getLastName())) {
             local.setLastName(userEntity.getLastName());
+        }
+        // never re-enable a user disabled locally, ie. by brute force detection
+        if (local.isEnabled() != userEntity.isEnabled() && (!userEntity.isEnabled() || local.getFirstAttribute(UserModel.DISABLED_REASON) == null)) {
             local.setEnabled(userEntity.isEnabled());
-            local.setFederationLink(model.getId());
-        } else {
-            logger.info("Reusing local user " + local.getUsername());
-        }
-        
-        // update local email from remote one
-        if (userEntity.getEmail() != null && !ObjectUtil.isBlank(userEntity.getEmail())) { // email available from remote
-            if (local.getEmail() == null || ObjectUtil.isBlank(local.getEmail())) { // local email not available
-                logger.info("Setting up local user " + local.getUsername() + " with email " + userEntity.getEmail());
-                local.setEmail(userEntity.getEmail().trim());
-            } else if (false == userEntity.getEmail().equalsIgnoreCase(local.getEmail())) { // local email different from remote
-                logger.info("Updating local user " + local.getUsername() + " with email " + userEntity.getEmail() + " (previously " + local.getEmail() + ")");
-                local.setEmail(userEntity.getEmail().trim());
-            }
         }
-        
-        return new MultipleDSUserModelDelegate(local, userEntity);
+        // update local email from remote one, when available
+        if (!ObjectUtil.isBlank(userEntity.getEmail()) && !userEntity.getEmail().trim().equalsIgnoreCase(local.getEmail())) {
+            logger.debugf("Updating local user %s with email %s (previously %s)", local.getUsername(), userEntity.getEmail(), local.getEmail());
+            local.setEmail(userEntity.getEmail().trim());
+        }
+        local.setSingleAttribute(FINGERPRINT_ATTRIBUTE, fingerprint);
     }
 
     @Override
     public UserModel getUserByEmail(RealmModel realm, String email) {
-        UserEntity userEntity = userDAO.findByEmail(email);
+        if (!lookupFilter.mightContain(email)) {
+            logger.debugf("Email %s not in datasource lookup filter", email);
+            metrics.lookupSkipped();
+            return null;
+        }
+        UserEntity userEntity = cache.getByEmail(email);
+        if (userEntity == null) {
+            try {
+                userEntity = userDAO.findByEmail(email);
+            } catch (DatasourceUnavailableException e) {
+                return unavailable(e, null);
+            }
+            cache.put(userEntity);
+        }
         if (userEntity != null) createAdapter(realm, userEntity);
         return null;
     }
 
+    /**
+     * Imported users are trusted while the datasource is unavailable, and for the revalidation interval after they
+     * were last found enabled in the datasource
+     */
     @Override
     public UserModel validate(RealmModel realmModel, UserModel userModel) {
-        UserEntity userEntity = userDAO.findByUsername(userModel.getUsername());
-        if (userEntity == null || !userEntity.isEnabled()) {
+        long now = System.currentTimeMillis();
+        if (revalidationMillis > 0 && now - getValidatedAt(userModel) < revalidationMillis) {
+            metrics.validationSkipped();
+            return userModel;
+        }
+        UserEntity cached = cache.getByUsername(userModel.getUsername());
+        boolean enabled;
+        try {
+            enabled = cached != null ? cached.isEnabled() : userDAO.existsByUsername(userModel.getUsername());
+        } catch (DatasourceUnavailableException e) {
+            return unavailable(e, userModel);
+        }
+        if (!enabled) {
             logger.warn("Username " + userModel.getUsername() + " not active anymore, evicting from Keycloak");
+            metrics.userEvicted();
+            searchCursors.clear();
             return null;
         }
+        if (revalidationMillis > 0) {
+            userModel.setSingleAttribute(VALIDATED_AT_ATTRIBUTE, Long.toString(now));
+        }
         return userModel;
     }
 
+    private static long getValidatedAt(UserModel userModel) {
+        String validatedAt = userModel.getFirstAttribute(VALIDATED_AT_ATTRIBUTE);
+        if (validatedAt == null) return 0;
+        try {
+            return Long.parseLong(validatedAt);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     /**
      * Returning false from a validation will just result in Red Hat Single Sign-On
      * seeing if it can validate using local storage.
@@ -121,18 +399,56 @@ public class MultipleDSUserStorageProvider implements UserStorageProvider,
     @Override
     public boolean isValid(RealmModel realm, UserModel user, CredentialInput input) {
         if (!supportsCredentialType(input.getType()) || !(input instanceof UserCredentialModel)) return false;
-        if (user != null && user.credentialManager().isConfiguredLocally(CredentialModel.PASSWORD)) {
+        UserCredentialModel cred = (UserCredentialModel) input;
+        if (user != null && hasLocalPassword(user)) {
+            if (writeBehind != null && Boolean.parseBoolean(user.getFirstAttribute(PASSWORD_PENDING_ATTRIBUTE))
+                    && !writeBehind.isPending(user.getUsername())) {
+                // already checked against the local credential, Keycloak does not need to hash it again
+                return replayPendingPassword(realm, user, cred);
+            }
             return false;
         }
-        UserCredentialModel cred = (UserCredentialModel) input;
         String password = getPassword(user);
-        return password != null && password.equals(SHA1Utils.encodeWithSalt(cred.getValue(), salt));
+        if (password == null) {
+            metrics.passwordMissing();
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean valid = passwordHasher.matches(cred.getValue(), password);
+        metrics.recordHash(start);
+        metrics.passwordValidated(valid);
+        if (valid && migrateCredentials) {
+            migrateCredential(realm, user, cred.getValue());
+        }
+        return valid;
+    }
+
+    /**
+     * Stores the validated password in the local credential store, hashed with the realm password policy. Next
+     * logins are then validated locally, without reading the legacy password.
+     */
+    private void migrateCredential(RealmModel realm, UserModel user, String password) {
+        try {
+            PasswordCredentialProvider passwordProvider = (PasswordCredentialProvider) session.getProvider(CredentialProvider.class,
+                    PasswordCredentialProviderFactory.PROVIDER_ID);
+            passwordProvider.createCredential(realm, user, password);
+            logger.debugf("Migrated password of user %s to local storage", user.getUsername());
+            metrics.passwordMigrated();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to migrate password of user " + user.getUsername() + " to local storage", e);
+            metrics.passwordMigrationFailed();
+        }
     }
 
     public String getPassword(UserModel user) {
         String password = null;
         if (user instanceof CachedUserModel) {
-            password = getUserEntityByUsername(user.getUsername()).getPassword();
+            UserEntity cached = cache.getByUsername(user.getUsername());
+            try {
+                password = cached != null ? cached.getPassword() : userDAO.findPasswordByUsername(user.getUsername());
+            } catch (DatasourceUnavailableException e) {
+                return unavailable(e, null);
+            }
         } else if (user instanceof MultipleDSUserModelDelegate) {
             password = ((MultipleDSUserModelDelegate) user).getRemotePassword();
         }
@@ -148,16 +464,76 @@ public class MultipleDSUserStorageProvider implements UserStorageProvider,
     @Override
     public boolean updateCredential(RealmModel realm, UserModel user, CredentialInput input) {
         if (!supportsCredentialType(input.getType()) || !(input instanceof UserCredentialModel)) return false;
-        logger.info("Updating password on remote " + user.getUsername());
-        UserEntity userEntity = getUserEntityByUsername(user.getUsername());
+        logger.debugf("Updating password on remote %s", user.getUsername());
+        cache.invalidateUsername(user.getUsername());
         UserCredentialModel cred = (UserCredentialModel) input;
-        userEntity.setPassword(SHA1Utils.encodeWithSalt(cred.getValue(), salt));
+        long start = System.nanoTime();
+        String password = passwordHasher.encode(cred.getValue());
+        metrics.recordHash(start);
+        if (writeBehind != null) {
+            writeBehind(realm, user.getUsername(), password);
+            return false;
+        }
+        try {
+            userDAO.updatePassword(user.getUsername(), password);
+        } catch (DatasourceUnavailableException e) {
+            // the password is still updated in the local credential store
+            logger.warn("Password of user " + user.getUsername() + " not updated on remote: " + e.getMessage());
+        }
         return false;
     }
 
+    /**
+     * Flags the local user, in the caller's transaction, and queues the write of the legacy hash to the datasource
+     * once the transaction committed. Writes lost with a crash or restart are queued again at the next login of the user, see
+     * {@link #replayPendingPassword}.
+     */
+    private void writeBehind(RealmModel realm, String username, String password) {
+        UserModel local = UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, username);
+        if (local != null) {
+            local.setSingleAttribute(PASSWORD_PENDING_ATTRIBUTE, Boolean.TRUE.toString());
+        }
+        String realmId = realm.getId();
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                writeBehind.enqueue(realmId, username, password);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    /**
+     * Queues again the legacy hash of a user whose password update was not written before a crash or restart, derived
+     * from the password being validated when it matches the local credential. The local credential store still decides
+     * the outcome of the login.
+     *
+     * @return true if the password matches the local credential, false to let Keycloak validate it locally
+     */
+    private boolean replayPendingPassword(RealmModel realm, UserModel user, UserCredentialModel cred) {
+        boolean valid = false;
+        try {
+            PasswordCredentialProvider passwordProvider = (PasswordCredentialProvider) session.getProvider(CredentialProvider.class,
+                    PasswordCredentialProviderFactory.PROVIDER_ID);
+            valid = passwordProvider.isValid(realm, user, cred);
+            if (!valid) return false;
+            long start = System.nanoTime();
+            String password = passwordHasher.encode(cred.getValue());
+            metrics.recordHash(start);
+            writeBehind(realm, user.getUsername(), password);
+            logger.debugf("Queued pending password update of user %s again", user.getUsername());
+        } catch (RuntimeException e) {
+            logger.warn("Failed to queue pending password update of user " + user.getUsername(), e);
+        }
+        return valid;
+    }
+
     @Override
     public boolean supportsCredentialType(String credentialType) {
-        return CredentialModel.PASSWORD.equals(credentialType);
+        return PasswordCredentialModel.TYPE.equals(credentialType);
     }
 
     @Override
@@ -168,11 +544,35 @@ public class MultipleDSUserStorageProvider implements UserStorageProvider,
 
     @Override
     public boolean isConfiguredFor(RealmModel realm, UserModel user, String credentialType) {
-        return supportsCredentialType(credentialType) && getPassword(user) != null;
+        // a locally configured password is validated by Keycloak, the legacy one is not read anymore
+        return supportsCredentialType(credentialType) && !hasLocalPassword(user) && getPassword(user) != null;
+    }
+
+    /**
+     * @return true if the user has a password in the local credential store, as checked by Keycloak's password
+     * credential provider
+     */
+    private static boolean hasLocalPassword(UserModel user) {
+        return user.credentialManager().getStoredCredentialsByTypeStream(PasswordCredentialModel.TYPE).findAny().isPresent();
     }
 
     @Override
     public int getUsersCount(RealmModel realm) {
+        try {
+            return userCount.get(() -> countUsers(userDAO, approximateCount));
+        } catch (DatasourceUnavailableException e) {
+            return unavailable(e, 0);
+        }
+    }
+
+    /**
+     * @param approximate use the database statistics when available, which also count disabled users
+     */
+    static int countUsers(UserDAO userDAO, boolean approximate) {
+        if (approximate) {
+            long estimate = userDAO.getApproximateCount();
+            if (estimate >= 0) return (int) Math.min(estimate, Integer.MAX_VALUE);
+        }
         return userDAO.getCount();
     }
 
@@ -203,19 +603,86 @@ public class MultipleDSUserStorageProvider implements UserStorageProvider,
     }
 
     @Override
-    public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String arg1, String arg2) {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'searchForUserByUserAttributeStream'");
+    public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String attrName, String attrValue) {
+        try {
+            return pages(userDAO.findStreamAll(Collections.singletonMap(attrName, attrValue), -1, -1))
+                    .flatMap(page -> createAdapters(realm, page));
+        } catch (DatasourceUnavailableException e) {
+            return unavailable(e, Stream.empty());
+        }
     }
 
+    /**
+     * Pages following one served by this component are read with keyset paging, from the last username of the
+     * previous page, other ones with an offset
+     */
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> filters, Integer firstResult, Integer maxResults) {
-        return userDAO.findStreamAll(filters, firstResult, maxResults).map(entity -> createAdapter(realm, entity));
+        int first = firstResult == null ? -1 : firstResult;
+        int max = maxResults == null ? -1 : maxResults;
+        String lastUsername = searchCursors.get(filters, first);
+        Stream<UserEntity> users;
+        try {
+            users = lastUsername != null ? userDAO.findStreamAllAfter(filters, lastUsername, max)
+                    : userDAO.findStreamAll(filters, first, max);
+        } catch (DatasourceUnavailableException e) {
+            return unavailable(e, Stream.empty());
+        }
+        if (max > 0) {
+            int next = Math.max(first, 0) + max;
+            int[] count = new int[1];
+            users = users.peek(entity -> {
+                if (++count[0] == max) searchCursors.put(filters, next, entity.getUsername());
+            });
+        }
+        return pages(users).flatMap(page -> createAdapters(realm, page));
+    }
+
+    /**
+     * Groups remote users in pages of {@link #ADAPTER_BATCH_SIZE}, read lazily from the given stream
+     */
+    private static Stream<List<UserEntity>> pages(Stream<UserEntity> users) {
+        Iterator<UserEntity> iterator = users.iterator();
+        Iterator<List<UserEntity>> pages = new Iterator<List<UserEntity>>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public List<UserEntity> next() {
+                List<UserEntity> page = new ArrayList<>(ADAPTER_BATCH_SIZE);
+                while (page.size() < ADAPTER_BATCH_SIZE && iterator.hasNext()) {
+                    page.add(iterator.next());
+                }
+                return page;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED), false).onClose(users::close);
+    }
+
+    /**
+     * @return circuit breaker state of each datasource, empty when no guard is configured
+     */
+    public Map<String, DatasourceGuard.State> getDatasourceStates() {
+        Map<String, DatasourceGuard.State> states = new LinkedHashMap<>();
+        for (Map.Entry<String, DatasourceGuard> guard : guards.entrySet()) {
+            states.put(guard.getKey(), guard.getValue().getState());
+        }
+        return states;
+    }
+
+    /**
+     * Fails fast when the datasource rejected the query, with the given fallback
+     */
+    private <T> T unavailable(DatasourceUnavailableException e, T fallback) {
+        logger.debug(e.getMessage());
+        return fallback;
     }
 
     @Override
     public Stream<String> getDisableableCredentialTypesStream(RealmModel arg0, UserModel arg1) {
-        return Stream.of(CredentialModel.PASSWORD);
+        return Stream.of(PasswordCredentialModel.TYPE);
     }
 
 }
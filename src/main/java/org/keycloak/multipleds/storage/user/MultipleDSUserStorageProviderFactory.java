@@ -4,48 +4,354 @@ import org.jboss.logging.Logger;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.multipleds.storage.user.cache.SearchCursorCache;
+import org.keycloak.multipleds.storage.user.cache.UserBloomFilter;
+import org.keycloak.multipleds.storage.user.cache.UserCountCache;
+import org.keycloak.multipleds.storage.user.cache.UserEntityCache;
+import org.keycloak.multipleds.storage.user.cache.UserLookupFilter;
+import org.keycloak.multipleds.storage.user.cache.UsernameSet;
+import org.keycloak.multipleds.storage.user.entities.DatasourceGuard;
+import org.keycloak.multipleds.storage.user.entities.FanOutUserDAO;
+import org.keycloak.multipleds.storage.user.entities.GuardedUserDAO;
+import org.keycloak.multipleds.storage.user.entities.JdbcQueryUserDAO;
+import org.keycloak.multipleds.storage.user.entities.JdbcUserDAO;
+import org.keycloak.multipleds.storage.user.entities.JpaUserDAO;
+import org.keycloak.multipleds.storage.user.entities.ManagedPool;
+import org.keycloak.multipleds.storage.user.entities.PasswordWriteBehind;
 import org.keycloak.multipleds.storage.user.entities.UserDAO;
+import org.keycloak.multipleds.storage.user.entities.UserEntity;
+import org.keycloak.multipleds.storage.user.metrics.ProviderMetrics;
+import org.keycloak.multipleds.storage.user.utils.DigestAlgorithm;
+import org.keycloak.multipleds.storage.user.utils.PasswordHasher;
+import org.keycloak.multipleds.storage.user.utils.SaltedDigestPasswordHasher;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 
+import io.agroal.api.AgroalDataSource;
+import io.micrometer.core.instrument.Metrics;
+import io.quarkus.agroal.DataSource.DataSourceLiteral;
+import io.quarkus.arc.Arc;
+import io.quarkus.arc.InstanceHandle;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.sql.DataSource;
 
-public class MultipleDSUserStorageProviderFactory implements UserStorageProviderFactory<MultipleDSUserStorageProvider> {
+public class MultipleDSUserStorageProviderFactory implements UserStorageProviderFactory<MultipleDSUserStorageProvider>, ImportSynchronization {
     protected static final List<ProviderConfigProperty> configMetadata;
     private static final Logger logger = Logger.getLogger(MultipleDSUserStorageProviderFactory.class);
     private static final String ID = "multiple-ds-user-storage";
     private static final String DESCRIPTION = "Multiple JPA datasources User Storage Provider";
     private static final String PERSISTENCE_UNIT_NAME = "multiple-ds-user-storage-jpa";
     private static final String DATASOURCE_PROPERTY = "datasource";
+    private static final String JDBC_URL_PROPERTY = "jdbcUrl";
+    private static final String JDBC_USERNAME_PROPERTY = "jdbcUsername";
+    private static final String JDBC_PASSWORD_PROPERTY = "jdbcPassword";
+    private static final String POOL_MIN_SIZE_PROPERTY = "poolMinSize";
+    private static final String POOL_MAX_SIZE_PROPERTY = "poolMaxSize";
+    private static final String POOL_ACQUISITION_TIMEOUT_PROPERTY = "poolAcquisitionTimeout";
+    private static final String STATEMENT_CACHE_SIZE_PROPERTY = "statementCacheSize";
+    private static final int DEFAULT_POOL_MAX_SIZE = 20;
+    private static final int DEFAULT_POOL_ACQUISITION_TIMEOUT = 5;
+    private static final int DEFAULT_STATEMENT_CACHE_SIZE = 250;
     private static final String SALT_PROPERTY = "salt";
+    private static final String HASH_ALGORITHM_PROPERTY = "hashAlgorithm";
+    private static final String CACHE_MAX_SIZE_PROPERTY = "cacheMaxSize";
+    private static final String CACHE_TTL_PROPERTY = "cacheTtl";
+    private static final int DEFAULT_CACHE_MAX_SIZE = 10000;
+    private static final int DEFAULT_CACHE_TTL = 30;
+    private static final int SEARCH_CURSORS = 1000;
+    private static final int SEARCH_CURSOR_TTL = 60;
+    private static final String COUNT_REFRESH_PROPERTY = "countRefresh";
+    private static final int DEFAULT_COUNT_REFRESH = 60;
+    static final String APPROXIMATE_COUNT_PROPERTY = "approximateCount";
+    private static final String FETCH_SIZE_PROPERTY = "fetchSize";
+    private static final String ATTRIBUTE_MAPPING_PROPERTY = "attributeMapping";
+    private static final String SYNC_BATCH_SIZE_PROPERTY = "syncBatchSize";
+    private static final String SYNC_THREADS_PROPERTY = "syncThreads";
+    private static final int DEFAULT_SYNC_BATCH_SIZE = 500;
+    private static final int DEFAULT_SYNC_THREADS = 4;
+    private static final String LOOKUP_FILTER_FPP_PROPERTY = "lookupFilterFalsePositiveRate";
+    private static final String LOOKUP_FILTER_REFRESH_PROPERTY = "lookupFilterRefresh";
+    private static final int DEFAULT_LOOKUP_FILTER_REFRESH = 300;
+    private static final int LOOKUP_FILTER_FETCH_SIZE = 1000;
+    static final String MIGRATE_CREDENTIALS_PROPERTY = "migrateCredentials";
+    private static final String LOOKUP_ENGINE_PROPERTY = "lookupEngine";
+    private static final String JPA_LOOKUP_ENGINE = "jpa";
+    private static final String JDBC_LOOKUP_ENGINE = "jdbc";
+    private static final String FAN_OUT_THREADS_PROPERTY = "fanOutThreads";
+    private static final int DEFAULT_FAN_OUT_THREADS = 16;
+    private static final String CHANGED_COLUMN_PROPERTY = "changedColumn";
+    private static final String SYNC_WATERMARK_ATTRIBUTE = "multipleds.syncWatermark.";
+    private static final Pattern COLUMN_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final String QUERY_TIMEOUT_PROPERTY = "queryTimeout";
+    private static final String MAX_CONCURRENT_QUERIES_PROPERTY = "maxConcurrentQueries";
+    private static final String BREAKER_FAILURE_THRESHOLD_PROPERTY = "breakerFailureThreshold";
+    private static final String BREAKER_OPEN_PROPERTY = "breakerOpen";
+    private static final int DEFAULT_BREAKER_OPEN = 30;
+    static final String REVALIDATION_INTERVAL_PROPERTY = "revalidationInterval";
+    private static final String PASSWORD_WRITE_BEHIND_PROPERTY = "passwordWriteBehind";
+    private static final String WRITE_BEHIND_INTERVAL_PROPERTY = "writeBehindInterval";
+    private static final String WRITE_BEHIND_BATCH_SIZE_PROPERTY = "writeBehindBatchSize";
+    private static final int DEFAULT_WRITE_BEHIND_INTERVAL = 5;
+    private static final int DEFAULT_WRITE_BEHIND_BATCH_SIZE = 100;
+    private static final String WARM_UP_USER = "multipleds-warm-up";
+
+    private final Map<String, UserEntityCache> caches = new ConcurrentHashMap<>();
+    private final Map<String, ProviderMetrics> metrics = new ConcurrentHashMap<>();
+    private final Map<String, UserLookupFilter> lookupFilters = new ConcurrentHashMap<>();
+    private final Map<String, SearchCursorCache> searchCursors = new ConcurrentHashMap<>();
+    private final Map<String, UserCountCache> userCounts = new ConcurrentHashMap<>();
+    private final Map<String, ExecutorService> fanOutExecutors = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, DatasourceGuard>> guards = new ConcurrentHashMap<>();
+    private final Map<String, PasswordWriteBehind> writeBehinds = new ConcurrentHashMap<>();
+    // password writes of each component run on its own thread, so that they are not delayed by long running
+    // background tasks nor by the datasources of other components
+    private final Map<String, ScheduledExecutorService> writeBehindExecutors = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, ManagedPool>> pools = new ConcurrentHashMap<>();
+    private volatile KeycloakSessionFactory sessionFactory;
+    // warm-up, user counts and lookup filter rebuilds
+    private ExecutorService backgroundExecutor;
 
     static {
         configMetadata = ProviderConfigurationBuilder.create()
                 .property().name(DATASOURCE_PROPERTY)
                 .type(ProviderConfigProperty.STRING_TYPE)
                 .label("Datasource")
-                .helpText("JPA datasource ie. user-store")
+                .helpText("JPA datasource ie. user-store, or a comma separated list of datasources queried concurrently, by decreasing priority")
+                .add()
+                .property().name(JDBC_URL_PROPERTY)
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .label("Managed datasources")
+                .helpText("Datasources connected through a connection pool of this provider instead of a Quarkus datasource and persistence unit, as datasource=JDBC URL ie. user-store=jdbc:mysql://legacy-db/users")
+                .add()
+                .property().name(JDBC_USERNAME_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Managed datasources username")
+                .helpText("Database user of the managed datasources, unless given in their JDBC URL")
+                .add()
+                .property().name(JDBC_PASSWORD_PROPERTY)
+                .type(ProviderConfigProperty.PASSWORD)
+                .label("Managed datasources password")
+                .helpText("Database password of the managed datasources, unless given in their JDBC URL")
+                .secret(true)
+                .add()
+                .property().name(POOL_MIN_SIZE_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Managed pool minimum size")
+                .helpText("Connections kept open to each managed datasource, even when idle")
+                .defaultValue("0")
+                .add()
+                .property().name(POOL_MAX_SIZE_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Managed pool maximum size")
+                .helpText("Maximum number of connections to each managed datasource, ie. the number of queries it can run at once")
+                .defaultValue(String.valueOf(DEFAULT_POOL_MAX_SIZE))
+                .add()
+                .property().name(POOL_ACQUISITION_TIMEOUT_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Managed pool acquisition timeout")
+                .helpText("Seconds a query waits for a connection of a managed datasource when all are in use before failing, 0 to wait forever")
+                .defaultValue(String.valueOf(DEFAULT_POOL_ACQUISITION_TIMEOUT))
+                .add()
+                .property().name(STATEMENT_CACHE_SIZE_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Managed pool statement cache size")
+                .helpText("Prepared statements cached by the JDBC driver on each connection of a managed datasource (MySQL, MariaDB and PostgreSQL), 0 to disable")
+                .defaultValue(String.valueOf(DEFAULT_STATEMENT_CACHE_SIZE))
                 .add()
                 .property().name(SALT_PROPERTY)
                 .type(ProviderConfigProperty.STRING_TYPE)
                 .label("Salt")
                 .helpText("CakePHP Auth from Configure::write('Security.salt')")
+                .add()
+                .property().name(HASH_ALGORITHM_PROPERTY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label("Hash algorithm")
+                .helpText("Digest applied to salt followed by password, as configured in CakePHP Security::setHash()")
+                .options(DigestAlgorithm.SHA1.getAlias(), DigestAlgorithm.SHA256.getAlias(), DigestAlgorithm.MD5.getAlias())
+                .defaultValue(DigestAlgorithm.SHA1.getAlias())
+                .add()
+                .property().name(CACHE_MAX_SIZE_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Remote user cache size")
+                .helpText("Maximum number of remote users cached for this datasource, each reachable by username, id and email, 0 to disable")
+                .defaultValue(String.valueOf(DEFAULT_CACHE_MAX_SIZE))
+                .add()
+                .property().name(CACHE_TTL_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Remote user cache TTL")
+                .helpText("Seconds a remote user lookup is reused before querying the datasource again, 0 to disable")
+                .defaultValue(String.valueOf(DEFAULT_CACHE_TTL))
+                .add()
+                .property().name(FETCH_SIZE_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Streaming fetch size")
+                .helpText("JDBC fetch size used to stream search results through a database cursor instead of loading them in memory, 0 to disable")
+                .defaultValue("0")
+                .add()
+                .property().name(ATTRIBUTE_MAPPING_PROPERTY)
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .label("Searchable attributes")
+                .helpText("Additional user attributes searched in the datasource, as attribute=property where property is one of " + UserDAO.SEARCHABLE_PROPERTIES)
+                .add()
+                .property().name(SYNC_BATCH_SIZE_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Synchronization batch size")
+                .helpText("Number of users imported in each transaction when synchronizing all users")
+                .defaultValue(String.valueOf(DEFAULT_SYNC_BATCH_SIZE))
+                .add()
+                .property().name(SYNC_THREADS_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Synchronization threads")
+                .helpText("Number of batches imported in parallel when synchronizing all users")
+                .defaultValue(String.valueOf(DEFAULT_SYNC_THREADS))
+                .add()
+                .property().name(CHANGED_COLUMN_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Changed users column")
+                .helpText("Column of the users table increased whenever a user changes, ie. a last modified timestamp or an update sequence, indexed with id. Enables the synchronization of changed users: it imports users changed since the previous one and removes local users disabled on remote")
+                .add()
+                .property().name(LOOKUP_FILTER_FPP_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Negative lookup filter false positive rate")
+                .helpText("Builds a Bloom filter of usernames and emails to skip queries for users missing from the datasource, ie. 0.01 for 1% of unknown users still queried, 0 to disable")
+                .defaultValue("0")
+                .add()
+                .property().name(LOOKUP_FILTER_REFRESH_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Negative lookup filter refresh")
+                .helpText("Seconds between rebuilds of the negative lookup filter, users added to the datasource are not found until the next one. 0 to build it only once")
+                .defaultValue(String.valueOf(DEFAULT_LOOKUP_FILTER_REFRESH))
+                .add()
+                .property().name(FAN_OUT_THREADS_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Fan-out threads")
+                .helpText("Maximum number of threads querying the managed datasources of this provider concurrently, when several are configured. Other datasources are queried on the thread of the request, as they use its transaction")
+                .defaultValue(String.valueOf(DEFAULT_FAN_OUT_THREADS))
+                .add()
+                .property().name(QUERY_TIMEOUT_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Query timeout")
+                .helpText("Seconds after which a query is cancelled and fails, 0 for no timeout")
+                .defaultValue("0")
+                .add()
+                .property().name(MAX_CONCURRENT_QUERIES_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Maximum concurrent queries")
+                .helpText("Maximum number of queries running at once on each datasource, further ones fail immediately instead of waiting for a connection. 0 for no limit")
+                .defaultValue("0")
+                .add()
+                .property().name(BREAKER_FAILURE_THRESHOLD_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Circuit breaker failure threshold")
+                .helpText("Consecutive failed queries after which a datasource is not queried anymore: lookups miss, imported users are trusted and passwords are validated locally only. 0 to disable")
+                .defaultValue("0")
+                .add()
+                .property().name(BREAKER_OPEN_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Circuit breaker open duration")
+                .helpText("Seconds a datasource is not queried once its circuit breaker opened, before a single query is tried again")
+                .defaultValue(String.valueOf(DEFAULT_BREAKER_OPEN))
+                .add()
+                .property().name(COUNT_REFRESH_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("User count refresh")
+                .helpText("Seconds the user count is reused before being refreshed in the background, 0 to count users on every call")
+                .defaultValue(String.valueOf(DEFAULT_COUNT_REFRESH))
+                .add()
+                .property().name(APPROXIMATE_COUNT_PROPERTY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Approximate user count")
+                .helpText("Reads the user count from the MySQL/MariaDB or PostgreSQL table statistics instead of counting rows. The estimate includes disabled users")
+                .defaultValue("false")
+                .add()
+                .property().name(REVALIDATION_INTERVAL_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Revalidation interval")
+                .helpText("Seconds an imported user is trusted after it was found enabled in the datasource, before it is checked again when loaded. 0 to check it every time. Users disabled meanwhile are evicted at the next check, or by the changed users synchronization")
+                .defaultValue("0")
+                .add()
+                .property().name(LOOKUP_ENGINE_PROPERTY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label("Lookup engine")
+                .helpText("jpa runs every query through the JPA entity manager, jdbc runs lookups by id, username or email and password reads and updates as plain JDBC statements on the Quarkus datasource. Managed datasources run every query as plain JDBC")
+                .options(JPA_LOOKUP_ENGINE, JDBC_LOOKUP_ENGINE)
+                .defaultValue(JPA_LOOKUP_ENGINE)
+                .add()
+                .property().name(MIGRATE_CREDENTIALS_PROPERTY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Migrate passwords")
+                .helpText("Stores the password in Keycloak, hashed with the realm password policy, after a successful login with the legacy password. Next logins do not read the legacy DB password anymore")
+                .defaultValue("false")
+                .add()
+                .property().name(PASSWORD_WRITE_BEHIND_PROPERTY)
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Password write-behind")
+                .helpText("Writes password updates to the datasource in the background, in batches, instead of within the password change. Pending updates are kept on the local user and retried until written")
+                .defaultValue("false")
+                .add()
+                .property().name(WRITE_BEHIND_INTERVAL_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Password write-behind interval")
+                .helpText("Seconds between two writes of the pending password updates")
+                .defaultValue(String.valueOf(DEFAULT_WRITE_BEHIND_INTERVAL))
+                .add()
+                .property().name(WRITE_BEHIND_BATCH_SIZE_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Password write-behind batch size")
+                .helpText("Maximum number of password updates written in a single JDBC batch")
+                .defaultValue(String.valueOf(DEFAULT_WRITE_BEHIND_BATCH_SIZE))
                 .add().build();
     }
 
     @Override
     public MultipleDSUserStorageProvider create(KeycloakSession session, ComponentModel model) {
         try {
-            // JBoss to Quarkus: remove prefix "java:jboss/datasources/" if existing
-            String datasource = model.getConfig().getFirst(DATASOURCE_PROPERTY).replace("java:jboss/datasources/", "");
-            String salt = model.getConfig().getFirst(SALT_PROPERTY);
-            logger.info("Initializing instance with datasource " + datasource);
-            return new MultipleDSUserStorageProvider(session, model, salt, new UserDAO(getEntityManager(session, datasource)));
+            String datasource = getDatasource(model);
+            logger.debugf("Initializing instance with datasource %s", datasource);
+            ProviderMetrics providerMetrics = getMetrics(model, datasource);
+            UserLookupFilter lookupFilter = getLookupFilter(model, datasource);
+            SearchCursorCache searchCursorCache = searchCursors.computeIfAbsent(model.getId(), id -> new SearchCursorCache(SEARCH_CURSORS, SEARCH_CURSOR_TTL));
+            UserDAO userDAO = createUserDAO(session, model, providerMetrics);
+            return new MultipleDSUserStorageProvider(session, model, getPasswordHasher(model), userDAO, getCache(model, datasource),
+                    providerMetrics, lookupFilter, searchCursorCache, getUserCount(model, datasource), getGuards(model),
+                    getWriteBehind(model));
         } catch (Exception e) {
             logger.error(e.getMessage());
             e.printStackTrace();
@@ -62,10 +368,909 @@ public class MultipleDSUserStorageProviderFactory implements UserStorageProvider
             logger.error("Datasource not defined");
             throw new ComponentValidationException("Datasource not defined");
         }
+        for (String name : datasource.split(",")) {
+            if (name.trim().isEmpty()) {
+                throw new ComponentValidationException("Empty datasource in " + datasource);
+            }
+        }
         if (salt == null || salt.isEmpty()) {
             logger.error("Salt not defined");
             throw new ComponentValidationException("Salt not defined");
         }
+        String hashAlgorithm = config.getConfig().getFirst(HASH_ALGORITHM_PROPERTY);
+        if (hashAlgorithm != null && !hashAlgorithm.isEmpty()) {
+            try {
+                DigestAlgorithm.fromAlias(hashAlgorithm);
+            } catch (IllegalArgumentException e) {
+                throw new ComponentValidationException(e.getMessage());
+            }
+        }
+        validateInteger(config, CACHE_MAX_SIZE_PROPERTY);
+        validateInteger(config, CACHE_TTL_PROPERTY);
+        validateInteger(config, FETCH_SIZE_PROPERTY);
+        validateInteger(config, SYNC_BATCH_SIZE_PROPERTY);
+        validateInteger(config, SYNC_THREADS_PROPERTY);
+        validateInteger(config, LOOKUP_FILTER_REFRESH_PROPERTY);
+        validateInteger(config, FAN_OUT_THREADS_PROPERTY);
+        validateInteger(config, COUNT_REFRESH_PROPERTY);
+        validateInteger(config, QUERY_TIMEOUT_PROPERTY);
+        validateInteger(config, MAX_CONCURRENT_QUERIES_PROPERTY);
+        validateInteger(config, BREAKER_FAILURE_THRESHOLD_PROPERTY);
+        validateInteger(config, BREAKER_OPEN_PROPERTY);
+        validateInteger(config, WRITE_BEHIND_INTERVAL_PROPERTY);
+        validateInteger(config, REVALIDATION_INTERVAL_PROPERTY);
+        validateInteger(config, WRITE_BEHIND_BATCH_SIZE_PROPERTY);
+        validateInteger(config, POOL_MIN_SIZE_PROPERTY);
+        validateInteger(config, POOL_MAX_SIZE_PROPERTY);
+        validateInteger(config, POOL_ACQUISITION_TIMEOUT_PROPERTY);
+        validateInteger(config, STATEMENT_CACHE_SIZE_PROPERTY);
+        if (getInteger(config, POOL_MAX_SIZE_PROPERTY, DEFAULT_POOL_MAX_SIZE) == 0) {
+            throw new ComponentValidationException(POOL_MAX_SIZE_PROPERTY + " must be positive");
+        }
+        String falsePositiveRate = config.getConfig().getFirst(LOOKUP_FILTER_FPP_PROPERTY);
+        if (falsePositiveRate != null && !falsePositiveRate.isEmpty()) {
+            try {
+                double rate = Double.parseDouble(falsePositiveRate.trim());
+                if (rate < 0 || rate >= 0.5) {
+                    throw new ComponentValidationException(LOOKUP_FILTER_FPP_PROPERTY + " must be between 0 and 0.5");
+                }
+            } catch (NumberFormatException e) {
+                throw new ComponentValidationException(LOOKUP_FILTER_FPP_PROPERTY + " must be a number");
+            }
+        }
+        String changedColumn = config.getConfig().getFirst(CHANGED_COLUMN_PROPERTY);
+        if (changedColumn != null && !changedColumn.trim().isEmpty() && !COLUMN_NAME.matcher(changedColumn.trim()).matches()) {
+            throw new ComponentValidationException("Invalid column name " + changedColumn);
+        }
+        getAttributeMapping(config);
+        getJdbcUrls(config);
+    }
+
+    /**
+     * Warms up the new provider instance once saved, which logs a warning for each datasource not reachable
+     */
+    @Override
+    public void onCreate(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        warmUpAfterCommit(session, model);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        this.sessionFactory = factory;
+        this.backgroundExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "multiple-ds-background");
+            thread.setDaemon(true);
+            return thread;
+        });
+        backgroundExecutor.execute(this::warmUp);
+    }
+
+    /**
+     * Warms up the given provider instance in the background once the transaction saving it is committed, so that its
+     * shared state and pools are only built from a saved configuration
+     */
+    private void warmUpAfterCommit(KeycloakSession session, ComponentModel model) {
+        if (backgroundExecutor == null) return;
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                backgroundExecutor.execute(() -> warmUp(model));
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    /**
+     * Initializes the shared state of every provider instance, fills the connection pools of their datasources and
+     * runs every lookup once, so that first logins after a restart do not pay for it. Runs in the background: an
+     * unreachable datasource does not delay nor fail the startup.
+     */
+    private void warmUp() {
+        List<ComponentModel> components;
+        try {
+            components = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> session.realms().getRealmsStream()
+                    .flatMap(realm -> realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName()))
+                    .filter(component -> ID.equals(component.getProviderId()))
+                    .collect(Collectors.toList()));
+        } catch (RuntimeException e) {
+            logger.warn("Failed to list provider instances to warm up", e);
+            return;
+        }
+        for (ComponentModel model : components) {
+            warmUp(model);
+        }
+    }
+
+    private void warmUp(ComponentModel model) {
+        countPendingPasswords(model);
+        for (String datasource : getDatasources(model)) {
+            long start = System.currentTimeMillis();
+            try {
+                int connections = fillPool(datasource, getDataSource(model, datasource));
+                long roundTrip = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                    long probed = probe(session, model, datasource, getPools(model).get(datasource));
+                    // creates the caches, metrics and lookup filter shared by the sessions of the component
+                    create(session, model);
+                    return probed;
+                });
+                logger.info("Warmed up datasource " + datasource + " (" + connections + " connections) in "
+                        + (System.currentTimeMillis() - start) + " ms, lookup round trip " + roundTrip + " ms");
+            } catch (RuntimeException e) {
+                logger.warn("Failed to warm up datasource " + datasource + ", it may not be reachable", e);
+            }
+        }
+    }
+
+    /**
+     * Starts the write-behind queue and reports the password updates of local users not written to the datasource
+     * before the last shutdown. Their legacy hashes were only kept in memory: they are queued again at the next login
+     * of each user.
+     */
+    private void countPendingPasswords(ComponentModel model) {
+        if (getWriteBehind(model) == null) return;
+        try {
+            long count = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(model.getParentId());
+                return UserStoragePrivateUtil.userLocalStorage(session)
+                        .searchForUserByUserAttributeStream(realm, MultipleDSUserStorageProvider.PASSWORD_PENDING_ATTRIBUTE, Boolean.TRUE.toString())
+                        .filter(user -> model.getId().equals(user.getFederationLink()))
+                        .count();
+            });
+            if (count > 0) {
+                logger.info(count + " password updates of datasource " + getDatasource(model) + " pending, written at the next login of their users");
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed to count pending password updates of datasource " + getDatasource(model), e);
+        }
+    }
+
+    /**
+     * Borrows as many connections as the minimum size of the pool at once, outside of any transaction so that they are
+     * distinct connections
+     *
+     * @return number of connections opened
+     */
+    private static int fillPool(String datasource, AgroalDataSource dataSource) {
+        int size = Math.max(1, dataSource.getConfiguration().connectionPoolConfiguration().minSize());
+        List<Connection> connections = new ArrayList<>(size);
+        try {
+            while (connections.size() < size) {
+                connections.add(dataSource.getConnection());
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to open connections to datasource " + datasource, e);
+        } finally {
+            for (Connection connection : connections) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    logger.warn("Failed to release connection to datasource " + datasource, e);
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Runs every lookup of the configured engine once for an unknown user, so that its statements are prepared
+     *
+     * @param pool pool of the datasource when it is managed, null otherwise
+     * @return round-trip time of a lookup by username in milliseconds
+     */
+    private long probe(KeycloakSession session, ComponentModel model, String datasource, ManagedPool pool) {
+        UserDAO userDAO;
+        if (pool != null) {
+            userDAO = new JdbcQueryUserDAO(pool.getDataSource(), Collections.<String, String>emptyMap(), ProviderMetrics.noop(), 0);
+        } else if (JDBC_LOOKUP_ENGINE.equals(model.getConfig().getFirst(LOOKUP_ENGINE_PROPERTY))) {
+            userDAO = new JdbcUserDAO(getDataSource(datasource), new JpaUserDAO(getEntityManager(session, datasource)), ProviderMetrics.noop());
+        } else {
+            userDAO = new JpaUserDAO(getEntityManager(session, datasource));
+        }
+        try {
+            userDAO.findById(WARM_UP_USER);
+            userDAO.findByEmail(WARM_UP_USER);
+            userDAO.existsByUsername(WARM_UP_USER);
+            userDAO.findPasswordByUsername(WARM_UP_USER);
+            long start = System.nanoTime();
+            userDAO.findByUsername(WARM_UP_USER);
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            userDAO.close();
+        }
+    }
+
+    /**
+     * Imports all remote users, one datasource after the other by increasing priority so that users of earlier
+     * datasources are imported last and override users of later ones with the same username. Then, if every user
+     * was imported, removes the local users of this provider that no datasource returned.
+     */
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        List<String> datasources = new ArrayList<>(getDatasources(model));
+        Collections.reverse(datasources);
+        SynchronizationResult result = new SynchronizationResult();
+        UsernameSet remoteUsernames = new UsernameSet();
+        for (String datasource : datasources) {
+            result.add(sync(sessionFactory, realmId, model, datasource, remoteUsernames));
+        }
+        if (result.getFailed() > 0) {
+            logger.warn("Skipping the removal of users deleted on remote, " + result.getFailed() + " users failed to synchronize");
+        } else if (remoteUsernames.isEmpty()) {
+            logger.warn("Skipping the removal of users deleted on remote, no remote user found");
+        } else {
+            result.add(removeStaleUsers(sessionFactory, realmId, model, remoteUsernames));
+        }
+        return result;
+    }
+
+    /**
+     * Imports all users of a datasource: pages are read sequentially with keyset paging and imported by parallel
+     * workers, each batch in its own transaction. A failed batch is counted as failed users and does not stop the others.
+     *
+     * @param remoteUsernames collects the usernames read
+     */
+    private SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model,
+                                       String datasource, UsernameSet remoteUsernames) {
+        int batchSize = Math.max(1, getInteger(model, SYNC_BATCH_SIZE_PROPERTY, DEFAULT_SYNC_BATCH_SIZE));
+        int threads = Math.max(1, getInteger(model, SYNC_THREADS_PROPERTY, DEFAULT_SYNC_THREADS));
+        logger.info("Synchronizing all users from datasource " + datasource + " in batches of " + batchSize + " on " + threads + " threads");
+
+        SynchronizationResult result = new SynchronizationResult();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // bounds the number of pages read ahead of the workers
+        Semaphore pending = new Semaphore(threads * 2);
+        List<Future<SynchronizationResult>> batches = new ArrayList<>();
+        AtomicInteger imported = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        try {
+            String lastId = "";
+            while (true) {
+                String after = lastId;
+                List<UserEntity> page = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                        session -> createSyncDAO(session, model, datasource).findAllAfter(after, batchSize));
+                if (page.isEmpty()) break;
+                lastId = page.get(page.size() - 1).getId();
+                for (UserEntity user : page) {
+                    remoteUsernames.add(user.getUsername());
+                }
+                pending.acquire();
+                batches.add(executor.submit(() -> {
+                    try {
+                        SynchronizationResult batch = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                            RealmModel realm = session.realms().getRealm(realmId);
+                            session.getContext().setRealm(realm);
+                            return create(session, model).importUsers(realm, page);
+                        });
+                        int total = imported.addAndGet(page.size());
+                        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                        logger.info("Synchronized " + total + " users from datasource " + datasource + " (" + (total * 1000L / elapsed) + " users/s)");
+                        return batch;
+                    } catch (RuntimeException e) {
+                        logger.error("Failed to synchronize " + page.size() + " users from datasource " + datasource, e);
+                        SynchronizationResult failed = new SynchronizationResult();
+                        failed.setFailed(page.size());
+                        return failed;
+                    } finally {
+                        pending.release();
+                    }
+                }));
+                if (page.size() < batchSize) break;
+            }
+            for (Future<SynchronizationResult> batch : batches) {
+                result.add(batch.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Synchronization of datasource " + datasource + " interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.info("Synchronization of datasource " + datasource + " finished: " + result.getStatus());
+        return result;
+    }
+
+    /**
+     * Removes the local users linked to this provider whose username was not read from any datasource. Local users are
+     * listed page by page in read-only transactions, then removed in transactions of the synchronization batch size.
+     * A username hash shared with a remote user keeps a deleted user, never removes a remote one.
+     */
+    private SynchronizationResult removeStaleUsers(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model,
+                                                   UsernameSet remoteUsernames) {
+        int batchSize = Math.max(1, getInteger(model, SYNC_BATCH_SIZE_PROPERTY, DEFAULT_SYNC_BATCH_SIZE));
+        List<String> stale = new ArrayList<>();
+        int first = 0;
+        while (true) {
+            int offset = first;
+            int read = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                List<UserModel> page = UserStoragePrivateUtil.userLocalStorage(session)
+                        .searchForUserStream(realm, Collections.emptyMap(), offset, batchSize)
+                        .collect(Collectors.toList());
+                for (UserModel local : page) {
+                    if (model.getId().equals(local.getFederationLink()) && !remoteUsernames.contains(local.getUsername())) {
+                        stale.add(local.getUsername());
+                    }
+                }
+                return page.size();
+            });
+            if (read < batchSize) break;
+            first += batchSize;
+        }
+        logger.info("Removing " + stale.size() + " local users deleted on remote");
+
+        SynchronizationResult result = new SynchronizationResult();
+        for (int from = 0; from < stale.size(); from += batchSize) {
+            List<String> usernames = stale.subList(from, Math.min(from + batchSize, stale.size()));
+            try {
+                result.add(KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                    RealmModel realm = session.realms().getRealm(realmId);
+                    session.getContext().setRealm(realm);
+                    return create(session, model).removeStaleUsers(realm, usernames);
+                }));
+            } catch (RuntimeException e) {
+                logger.error("Failed to remove " + usernames.size() + " local users deleted on remote", e);
+                SynchronizationResult failed = new SynchronizationResult();
+                failed.setFailed(usernames.size());
+                result.add(failed);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Imports the users changed since the previous run, one datasource after the other by increasing priority. Each
+     * datasource is read from the highest value of the changed users column seen so far, stored on the realm, rather
+     * than from {@code lastSync} so that clock skew between Keycloak and the database cannot skip changes. The first
+     * run of a datasource reads every user once. Users deleted from the datasource are not seen: they are evicted when
+     * validated, or removed by the next full synchronization.
+     */
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        String column = model.getConfig().getFirst(CHANGED_COLUMN_PROPERTY);
+        if (column == null || column.trim().isEmpty()) {
+            logger.warn("Changed users synchronization requires a changed users column for datasource " + getDatasource(model));
+            return SynchronizationResult.ignored();
+        }
+        List<String> datasources = new ArrayList<>(getDatasources(model));
+        Collections.reverse(datasources);
+        SynchronizationResult result = new SynchronizationResult();
+        for (String datasource : datasources) {
+            result.add(syncSince(sessionFactory, realmId, model, datasource, column.trim()));
+        }
+        return result;
+    }
+
+    /**
+     * Imports changed users of a datasource with keyset paging on (column, id), each page and the watermark it reached
+     * in the same transaction: a failed run resumes from the last imported page
+     */
+    private SynchronizationResult syncSince(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model,
+                                            String datasource, String column) {
+        int batchSize = Math.max(1, getInteger(model, SYNC_BATCH_SIZE_PROPERTY, DEFAULT_SYNC_BATCH_SIZE));
+        String watermarkAttribute = SYNC_WATERMARK_ATTRIBUTE + model.getId() + "." + datasource;
+        String stored = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                session -> session.realms().getRealm(realmId).getAttribute(watermarkAttribute));
+        logger.info("Synchronizing users changed in datasource " + datasource + " after " + (stored != null ? stored : "the beginning"));
+
+        SynchronizationResult result = new SynchronizationResult();
+        Object watermark = stored != null ? parseWatermark(stored) : null;
+        String lastId = "";
+        long start = System.currentTimeMillis();
+        while (true) {
+            Object after = watermark;
+            String afterId = lastId;
+            List<Object[]> page = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                    session -> createSyncDAO(session, model, datasource).findModifiedAfter(column, after, afterId, batchSize));
+            if (page.isEmpty()) break;
+            List<UserEntity> users = new ArrayList<>(page.size());
+            for (Object[] row : page) {
+                users.add((UserEntity) row[0]);
+            }
+            Object[] last = page.get(page.size() - 1);
+            watermark = last[1];
+            lastId = ((UserEntity) last[0]).getId();
+            String reached = formatWatermark(watermark);
+            result.add(KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                session.getContext().setRealm(realm);
+                SynchronizationResult batch = create(session, model).importChangedUsers(realm, users);
+                realm.setAttribute(watermarkAttribute, reached);
+                return batch;
+            }));
+            if (page.size() < batchSize) break;
+        }
+        logger.info("Synchronization of users changed in datasource " + datasource + " finished in "
+                + (System.currentTimeMillis() - start) + " ms: " + result.getStatus());
+        return result;
+    }
+
+    private static String formatWatermark(Object watermark) {
+        return watermark instanceof Date && !(watermark instanceof Timestamp) ? new Timestamp(((Date) watermark).getTime()).toString()
+                : String.valueOf(watermark);
+    }
+
+    /**
+     * @return stored watermark as a number or a timestamp, or as is for other column types
+     */
+    private static Object parseWatermark(String watermark) {
+        try {
+            return Long.parseLong(watermark);
+        } catch (NumberFormatException e) {
+            // not a sequence
+        }
+        try {
+            return Timestamp.valueOf(watermark);
+        } catch (IllegalArgumentException e) {
+            return watermark;
+        }
+    }
+
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        release(oldModel.getId());
+        warmUpAfterCommit(session, newModel);
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        for (String datasource : getDatasources(model)) {
+            realm.removeAttribute(SYNC_WATERMARK_ATTRIBUTE + model.getId() + "." + datasource);
+        }
+        release(model.getId());
+    }
+
+    @Override
+    public void close() {
+        // taken before any release, which hands the executor its last write and forgets it
+        List<ScheduledExecutorService> lastWrites = new ArrayList<>(writeBehindExecutors.values());
+        for (String componentId : writeBehinds.keySet()) {
+            release(componentId);
+        }
+        for (String componentId : metrics.keySet()) {
+            release(componentId);
+        }
+        for (String componentId : fanOutExecutors.keySet()) {
+            release(componentId);
+        }
+        for (String componentId : pools.keySet()) {
+            release(componentId);
+        }
+        if (backgroundExecutor != null) {
+            backgroundExecutor.shutdownNow();
+        }
+        // lets the last writes of pending passwords complete
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (ScheduledExecutorService writeBehindExecutor : lastWrites) {
+            try {
+                writeBehindExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writeBehindExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Drops the state shared by all sessions of a component, so that it is rebuilt from its current configuration
+     */
+    private void release(String componentId) {
+        caches.remove(componentId);
+        lookupFilters.remove(componentId);
+        searchCursors.remove(componentId);
+        userCounts.remove(componentId);
+        guards.remove(componentId);
+        PasswordWriteBehind writeBehind = writeBehinds.remove(componentId);
+        ScheduledExecutorService writeBehindExecutor = writeBehindExecutors.remove(componentId);
+        Map<String, ManagedPool> componentPools = pools.remove(componentId);
+        Runnable closePools = () -> {
+            if (componentPools != null) {
+                componentPools.values().forEach(ManagedPool::close);
+            }
+        };
+        if (writeBehind != null && writeBehindExecutor != null) {
+            // a last write of pending passwords, before closing the pools it runs on. Passwords left by a failed
+            // write are queued again at the next login of their users. Periodic writes are cancelled by shutdown.
+            writeBehindExecutor.execute(() -> {
+                writeBehind.flush();
+                closePools.run();
+            });
+            writeBehindExecutor.shutdown();
+        } else {
+            closePools.run();
+        }
+        ExecutorService fanOutExecutor = fanOutExecutors.remove(componentId);
+        if (fanOutExecutor != null) {
+            // queries already submitted complete, later ones run on the calling thread
+            fanOutExecutor.shutdown();
+        }
+        ProviderMetrics providerMetrics = metrics.remove(componentId);
+        if (providerMetrics != null) {
+            providerMetrics.close();
+        }
+    }
+
+    private static void validateInteger(ComponentModel config, String property) {
+        String value = config.getConfig().getFirst(property);
+        if (value == null || value.isEmpty()) return;
+        try {
+            if (Integer.parseInt(value.trim()) < 0) {
+                throw new ComponentValidationException(property + " must not be negative");
+            }
+        } catch (NumberFormatException e) {
+            throw new ComponentValidationException(property + " must be a number");
+        }
+    }
+
+    private static int getInteger(ComponentModel model, String property, int defaultValue) {
+        String value = model.getConfig().getFirst(property);
+        if (value == null || value.isEmpty()) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value " + value + " for " + property + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parses attribute=property entries, throwing {@link ComponentValidationException} on malformed ones
+     */
+    private static Map<String, String> getAttributeMapping(ComponentModel model) {
+        Map<String, String> mapping = new HashMap<>();
+        List<String> entries = model.getConfig().getList(ATTRIBUTE_MAPPING_PROPERTY);
+        for (String entry : entries) {
+            if (entry == null || entry.trim().isEmpty()) continue;
+            String[] parts = entry.split("=", 2);
+            if (parts.length != 2 || parts[0].trim().isEmpty() || !UserDAO.SEARCHABLE_PROPERTIES.contains(parts[1].trim())) {
+                throw new ComponentValidationException("Invalid searchable attribute " + entry + ", expected attribute=property where property is one of " + UserDAO.SEARCHABLE_PROPERTIES);
+            }
+            mapping.put(parts[0].trim(), parts[1].trim());
+        }
+        return mapping;
+    }
+
+    /**
+     * Parses datasource=JDBC URL entries, throwing {@link ComponentValidationException} on malformed ones
+     *
+     * @return JDBC URLs of the managed datasources, by datasource
+     */
+    private static Map<String, String> getJdbcUrls(ComponentModel model) {
+        Map<String, String> jdbcUrls = new HashMap<>();
+        List<String> datasources = getDatasources(model);
+        for (String entry : model.getConfig().getList(JDBC_URL_PROPERTY)) {
+            if (entry == null || entry.trim().isEmpty()) continue;
+            String[] parts = entry.split("=", 2);
+            if (parts.length != 2 || !datasources.contains(parts[0].trim()) || !parts[1].trim().startsWith("jdbc:")) {
+                throw new ComponentValidationException("Invalid managed datasource " + entry + ", expected datasource=JDBC URL where datasource is one of " + datasources);
+            }
+            jdbcUrls.put(parts[0].trim(), parts[1].trim());
+        }
+        return jdbcUrls;
+    }
+
+    /**
+     * @return configured datasources, as a comma separated list
+     */
+    private static String getDatasource(ComponentModel model) {
+        return String.join(",", getDatasources(model));
+    }
+
+    /**
+     * @return configured datasources by decreasing priority
+     */
+    private static List<String> getDatasources(ComponentModel model) {
+        List<String> datasources = new ArrayList<>();
+        for (String datasource : model.getConfig().getFirst(DATASOURCE_PROPERTY).split(",")) {
+            // JBoss to Quarkus: remove prefix "java:jboss/datasources/" if existing
+            datasources.add(datasource.trim().replace("java:jboss/datasources/", ""));
+        }
+        return datasources;
+    }
+
+    private static PasswordHasher getPasswordHasher(ComponentModel model) {
+        String hashAlgorithm = model.getConfig().getFirst(HASH_ALGORITHM_PROPERTY);
+        DigestAlgorithm algorithm = hashAlgorithm == null || hashAlgorithm.isEmpty() ? DigestAlgorithm.SHA1 : DigestAlgorithm.fromAlias(hashAlgorithm);
+        return new SaltedDigestPasswordHasher(algorithm, model.getConfig().getFirst(SALT_PROPERTY));
+    }
+
+    private static double getFalsePositiveRate(ComponentModel model) {
+        String value = model.getConfig().getFirst(LOOKUP_FILTER_FPP_PROPERTY);
+        if (value == null || value.isEmpty()) return 0;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value " + value + " for " + LOOKUP_FILTER_FPP_PROPERTY + ", disabling the negative lookup filter");
+            return 0;
+        }
+    }
+
+    /**
+     * Meters shared by all sessions of the given component, registered in the global registry exported by Keycloak
+     */
+    private ProviderMetrics getMetrics(ComponentModel model, String datasource) {
+        return metrics.computeIfAbsent(model.getId(), id -> {
+            ProviderMetrics providerMetrics = new ProviderMetrics(Metrics.globalRegistry, id, datasource);
+            providerMetrics.bindCache(getCache(model, datasource));
+            return providerMetrics;
+        });
+    }
+
+    /**
+     * Remote user cache shared by all sessions of the given component, recreated when the component is updated
+     */
+    private UserEntityCache getCache(ComponentModel model, String datasource) {
+        return caches.computeIfAbsent(model.getId(), id -> {
+            logger.info("Creating remote user cache for datasource " + datasource);
+            return new UserEntityCache(getInteger(model, CACHE_MAX_SIZE_PROPERTY, DEFAULT_CACHE_MAX_SIZE),
+                    getInteger(model, CACHE_TTL_PROPERTY, DEFAULT_CACHE_TTL));
+        });
+    }
+
+    /**
+     * User count shared by all sessions of the given component
+     */
+    private UserCountCache getUserCount(ComponentModel model, String datasource) {
+        return userCounts.computeIfAbsent(model.getId(), id -> new UserCountCache(getInteger(model, COUNT_REFRESH_PROPERTY, DEFAULT_COUNT_REFRESH),
+                backgroundExecutor != null ? backgroundExecutor : Runnable::run, () -> countUsers(model, datasource)));
+    }
+
+    /**
+     * @return user count read in its own transaction, -1 on failure
+     */
+    private int countUsers(ComponentModel model, String datasource) {
+        long start = System.currentTimeMillis();
+        try {
+            int count = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> MultipleDSUserStorageProvider.countUsers(
+                    createUserDAO(session, model, ProviderMetrics.noop()), model.get(APPROXIMATE_COUNT_PROPERTY, false)));
+            logger.debug("Counted " + count + " users in datasource " + datasource + " in " + (System.currentTimeMillis() - start) + " ms");
+            return count;
+        } catch (RuntimeException e) {
+            logger.error("Failed to count users of datasource " + datasource, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Negative lookup filter shared by all sessions of the given component. Rebuilds are scheduled in the background
+     * when it is stale, lookups keep using the previous filter (or query every user until the first one is built).
+     */
+    private UserLookupFilter getLookupFilter(ComponentModel model, String datasource) {
+        UserLookupFilter filter = lookupFilters.computeIfAbsent(model.getId(), id -> {
+            UserLookupFilter lookupFilter = new UserLookupFilter(getFalsePositiveRate(model),
+                    getInteger(model, LOOKUP_FILTER_REFRESH_PROPERTY, DEFAULT_LOOKUP_FILTER_REFRESH));
+            getMetrics(model, datasource).bindLookupFilter(lookupFilter);
+            return lookupFilter;
+        });
+        if (sessionFactory != null && filter.startRefresh()) {
+            backgroundExecutor.execute(() -> refreshLookupFilter(filter, model, datasource));
+        }
+        return filter;
+    }
+
+    /**
+     * Streams usernames and emails into a new filter sized from the current user count, replacing the previous one
+     * only once it is complete
+     */
+    private void refreshLookupFilter(UserLookupFilter filter, ComponentModel model, String datasource) {
+        long start = System.currentTimeMillis();
+        try {
+            UserBloomFilter bloomFilter = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                UserDAO userDAO = createUserDAO(session, model, ProviderMetrics.noop());
+                // one entry for the username and one for the email, with headroom for users added before the next refresh
+                UserBloomFilter bloom = new UserBloomFilter(userDAO.getCount() * 22L / 10, filter.getFalsePositiveRate());
+                try (Stream<Object[]> rows = userDAO.streamUsernamesAndEmails(LOOKUP_FILTER_FETCH_SIZE)) {
+                    rows.forEach(row -> {
+                        bloom.put((String) row[0]);
+                        bloom.put((String) row[1]);
+                    });
+                }
+                return bloom;
+            });
+            filter.refreshed(bloomFilter);
+            logger.info("Built negative lookup filter of datasource " + datasource + " (" + bloomFilter.getSizeInBytes() / 1024
+                    + " KiB) in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (RuntimeException e) {
+            logger.error("Failed to build negative lookup filter of datasource " + datasource, e);
+            filter.refreshFailed();
+        }
+    }
+
+    /**
+     * DAO of the configured datasource, or fanning out to all of them when several are configured. Queries of each
+     * datasource run through its guard, when one is configured.
+     */
+    private UserDAO createUserDAO(KeycloakSession session, ComponentModel model, ProviderMetrics providerMetrics) {
+        int fetchSize = getInteger(model, FETCH_SIZE_PROPERTY, 0);
+        int queryTimeout = getInteger(model, QUERY_TIMEOUT_PROPERTY, 0);
+        Map<String, String> attributeMapping = getAttributeMapping(model);
+        Map<String, DatasourceGuard> datasourceGuards = getGuards(model);
+        List<String> datasources = getDatasources(model);
+        List<UserDAO> userDAOs = new ArrayList<>(datasources.size());
+        // may be queried from the fan-out threads
+        List<UserDAO> detachedDAOs = new ArrayList<>(datasources.size());
+        boolean jdbc = JDBC_LOOKUP_ENGINE.equals(model.getConfig().getFirst(LOOKUP_ENGINE_PROPERTY));
+        Map<String, ManagedPool> managedPools = getPools(model);
+        for (String datasource : datasources) {
+            // query timers of each datasource apart, when fanning out
+            ProviderMetrics datasourceMetrics = datasources.size() == 1 ? providerMetrics : providerMetrics.forDatasource(datasource);
+            ManagedPool pool = managedPools.get(datasource);
+            UserDAO userDAO;
+            if (pool != null) {
+                // managed pools have no persistence unit
+                userDAO = new JdbcQueryUserDAO(pool.getDataSource(), attributeMapping, datasourceMetrics, queryTimeout);
+            } else {
+                userDAO = new JpaUserDAO(getEntityManager(session, datasource), fetchSize, attributeMapping, datasourceMetrics, queryTimeout);
+                if (jdbc) {
+                    userDAO = new JdbcUserDAO(getDataSource(datasource), userDAO, datasourceMetrics, queryTimeout);
+                }
+            }
+            DatasourceGuard guard = datasourceGuards.get(datasource);
+            if (guard != null) {
+                userDAO = new GuardedUserDAO(userDAO, guard);
+            }
+            userDAOs.add(userDAO);
+            if (pool != null) {
+                detachedDAOs.add(userDAO);
+            }
+        }
+        return userDAOs.size() == 1 ? userDAOs.get(0) : new FanOutUserDAO(userDAOs, detachedDAOs, getFanOutExecutor(model));
+    }
+
+    /**
+     * Guards of the configured datasources shared by all sessions of the given component, empty when neither a query
+     * timeout, a maximum number of concurrent queries nor a circuit breaker is configured
+     */
+    private Map<String, DatasourceGuard> getGuards(ComponentModel model) {
+        return guards.computeIfAbsent(model.getId(), id -> {
+            int maxConcurrentQueries = getInteger(model, MAX_CONCURRENT_QUERIES_PROPERTY, 0);
+            int failureThreshold = getInteger(model, BREAKER_FAILURE_THRESHOLD_PROPERTY, 0);
+            // timed out queries then degrade like rejected ones
+            if (maxConcurrentQueries <= 0 && failureThreshold <= 0 && getInteger(model, QUERY_TIMEOUT_PROPERTY, 0) <= 0) {
+                return Collections.emptyMap();
+            }
+            int openSeconds = getInteger(model, BREAKER_OPEN_PROPERTY, DEFAULT_BREAKER_OPEN);
+            ProviderMetrics providerMetrics = getMetrics(model, getDatasource(model));
+            Map<String, DatasourceGuard> datasourceGuards = new HashMap<>();
+            for (String datasource : getDatasources(model)) {
+                DatasourceGuard guard = new DatasourceGuard(datasource, maxConcurrentQueries, failureThreshold, openSeconds);
+                providerMetrics.bindGuard(guard);
+                datasourceGuards.put(datasource, guard);
+            }
+            return datasourceGuards;
+        });
+    }
+
+    /**
+     * Connection pools of the managed datasources shared by all sessions of the given component, closed when the
+     * component is updated or removed. Empty when no datasource is managed.
+     */
+    private Map<String, ManagedPool> getPools(ComponentModel model) {
+        return pools.computeIfAbsent(model.getId(), id -> {
+            Map<String, String> jdbcUrls = getJdbcUrls(model);
+            if (jdbcUrls.isEmpty()) return Collections.emptyMap();
+            ProviderMetrics providerMetrics = getMetrics(model, getDatasource(model));
+            Map<String, ManagedPool> managedPools = new HashMap<>();
+            try {
+                for (Map.Entry<String, String> jdbcUrl : jdbcUrls.entrySet()) {
+                    ManagedPool pool = createPool(model, jdbcUrl.getKey(), jdbcUrl.getValue());
+                    managedPools.put(jdbcUrl.getKey(), pool);
+                    providerMetrics.bindPool(pool);
+                }
+            } catch (SQLException e) {
+                managedPools.values().forEach(ManagedPool::close);
+                throw new IllegalStateException("Failed to create connection pools of datasource " + getDatasource(model), e);
+            }
+            return managedPools;
+        });
+    }
+
+    private static ManagedPool createPool(ComponentModel model, String datasource, String jdbcUrl) throws SQLException {
+        return new ManagedPool(datasource, jdbcUrl, model.getConfig().getFirst(JDBC_USERNAME_PROPERTY),
+                model.getConfig().getFirst(JDBC_PASSWORD_PROPERTY), getInteger(model, POOL_MIN_SIZE_PROPERTY, 0),
+                getInteger(model, POOL_MAX_SIZE_PROPERTY, DEFAULT_POOL_MAX_SIZE),
+                getInteger(model, POOL_ACQUISITION_TIMEOUT_PROPERTY, DEFAULT_POOL_ACQUISITION_TIMEOUT),
+                getInteger(model, STATEMENT_CACHE_SIZE_PROPERTY, DEFAULT_STATEMENT_CACHE_SIZE));
+    }
+
+    /**
+     * Password write-behind queue shared by all sessions of the given component, flushed periodically in the
+     * background, null when disabled
+     */
+    private PasswordWriteBehind getWriteBehind(ComponentModel model) {
+        if (!model.get(PASSWORD_WRITE_BEHIND_PROPERTY, false) || sessionFactory == null) return null;
+        return writeBehinds.computeIfAbsent(model.getId(), id -> {
+            Map<String, DataSource> dataSources = new LinkedHashMap<>();
+            for (String datasource : getDatasources(model)) {
+                dataSources.put(datasource, getDataSource(model, datasource));
+            }
+            PasswordWriteBehind writeBehind = new PasswordWriteBehind(dataSources,
+                    getInteger(model, WRITE_BEHIND_BATCH_SIZE_PROPERTY, DEFAULT_WRITE_BEHIND_BATCH_SIZE),
+                    written -> passwordsWritten(id, written));
+            getMetrics(model, getDatasource(model)).bindWriteBehind(writeBehind);
+            long interval = Math.max(1, getInteger(model, WRITE_BEHIND_INTERVAL_PROPERTY, DEFAULT_WRITE_BEHIND_INTERVAL));
+            String threadName = "multiple-ds-write-behind-" + getDatasource(model);
+            ScheduledExecutorService writeBehindExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+            writeBehindExecutor.scheduleWithFixedDelay(writeBehind::flush, interval, interval, TimeUnit.SECONDS);
+            writeBehindExecutors.put(id, writeBehindExecutor);
+            return writeBehind;
+        });
+    }
+
+    /**
+     * Clears the pending flag of local users, unless a newer password of theirs was queued meanwhile
+     */
+    private void passwordsWritten(String componentId, List<PasswordWriteBehind.PendingPassword> written) {
+        PasswordWriteBehind writeBehind = writeBehinds.get(componentId);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            for (PasswordWriteBehind.PendingPassword pendingPassword : written) {
+                if (writeBehind != null && writeBehind.isPending(pendingPassword.getUsername())) continue;
+                RealmModel realm = session.realms().getRealm(pendingPassword.getRealmId());
+                UserModel local = realm != null ? UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, pendingPassword.getUsername()) : null;
+                if (local != null) {
+                    local.removeAttribute(MultipleDSUserStorageProvider.PASSWORD_PENDING_ATTRIBUTE);
+                }
+            }
+        });
+    }
+
+    /**
+     * Bounded executor shared by all sessions of the given component, its threads are released when idle
+     */
+    private ExecutorService getFanOutExecutor(ComponentModel model) {
+        return fanOutExecutors.computeIfAbsent(model.getId(), id -> {
+            int threads = Math.max(1, getInteger(model, FAN_OUT_THREADS_PROPERTY, DEFAULT_FAN_OUT_THREADS));
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "multiple-ds-fan-out-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        });
+    }
+
+    /**
+     * @return connection pool of the given datasource of the component, managed by this factory or by Quarkus
+     */
+    private AgroalDataSource getDataSource(ComponentModel model, String datasourceName) {
+        ManagedPool pool = getPools(model).get(datasourceName);
+        return pool != null ? pool.getDataSource() : getDataSource(datasourceName);
+    }
+
+    /**
+     * @return Agroal datasource configured in Quarkus with the given name, ie. quarkus.datasource.user-store.*
+     */
+    private static AgroalDataSource getDataSource(String datasourceName) {
+        InstanceHandle<AgroalDataSource> dataSource = Arc.container().instance(AgroalDataSource.class, new DataSourceLiteral(datasourceName));
+        if (!dataSource.isAvailable()) {
+            throw new IllegalStateException("Datasource " + datasourceName + " not configured");
+        }
+        return dataSource.get();
+    }
+
+    /**
+     * @return DAO paging over the given datasource of the component for synchronization, through JDBC when the
+     * datasource is managed. Its connection is released with the session.
+     */
+    private UserDAO createSyncDAO(KeycloakSession session, ComponentModel model, String datasourceName) {
+        ManagedPool pool = getPools(model).get(datasourceName);
+        if (pool == null) {
+            return new JpaUserDAO(getEntityManager(session, datasourceName));
+        }
+        UserDAO userDAO = new JdbcQueryUserDAO(pool.getDataSource(), Collections.<String, String>emptyMap(), ProviderMetrics.noop(), 0);
+        session.enlistForClose(userDAO::close);
+        return userDAO;
     }
 
     /**
@@ -75,7 +1280,11 @@ public class MultipleDSUserStorageProviderFactory implements UserStorageProvider
      * @return entity manager for the given datasource
      */
     private EntityManager getEntityManager(KeycloakSession session, String datasourceName) {
-        EntityManager em = session.getProvider(JpaConnectionProvider.class, datasourceName).getEntityManager();
+        JpaConnectionProvider connectionProvider = session.getProvider(JpaConnectionProvider.class, datasourceName);
+        if (connectionProvider == null) {
+            throw new IllegalStateException("No persistence unit for datasource " + datasourceName);
+        }
+        EntityManager em = connectionProvider.getEntityManager();
         if (em == null) {
             logger.error("Entity manager is null for datasource " + datasourceName);
         }
@@ -0,0 +1,86 @@
+package org.keycloak.multipleds.storage.user.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Last username of the pages served for each search, so that the next page can be read with keyset paging
+ * ({@code username > last}) instead of an offset. Keycloak only passes offsets: a page is seeked when the previous
+ * one was served by this component, which is the case when browsing the admin console page after page.
+ * <p>
+ * A cursor only matches the offset semantics while the users before it do not change: cursors expire after a short
+ * TTL, after which the page is read with an offset again, and are cleared when users are known to have changed.
+ */
+public class SearchCursorCache {
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Cursor> cursors;
+
+    public SearchCursorCache(int maxSize, long ttlSeconds) {
+        this.maxSize = Math.max(0, maxSize);
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(Math.max(0, ttlSeconds));
+        this.cursors = new LinkedHashMap<String, Cursor>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cursor> eldest) {
+                return size() > SearchCursorCache.this.maxSize;
+            }
+        };
+    }
+
+    private boolean isEnabled() {
+        return maxSize > 0 && ttlMillis > 0;
+    }
+
+    /**
+     * @return last username before the given offset of the search, null if unknown or expired
+     */
+    public String get(Map<String, String> filters, int firstResult) {
+        if (!isEnabled() || firstResult <= 0) return null;
+        String key = key(filters, firstResult);
+        synchronized (cursors) {
+            Cursor cursor = cursors.get(key);
+            if (cursor == null) return null;
+            if (cursor.expiresAt <= System.currentTimeMillis()) {
+                cursors.remove(key);
+                return null;
+            }
+            return cursor.lastUsername;
+        }
+    }
+
+    /**
+     * @param firstResult offset of the page following the given username
+     */
+    public void put(Map<String, String> filters, int firstResult, String lastUsername) {
+        if (!isEnabled() || lastUsername == null) return;
+        Cursor cursor = new Cursor(lastUsername, System.currentTimeMillis() + ttlMillis);
+        synchronized (cursors) {
+            cursors.put(key(filters, firstResult), cursor);
+        }
+    }
+
+    /**
+     * Drops every cursor, when users were added, changed or removed
+     */
+    public void clear() {
+        synchronized (cursors) {
+            cursors.clear();
+        }
+    }
+
+    private static String key(Map<String, String> filters, int firstResult) {
+        return new TreeMap<>(filters).toString() + '@' + firstResult;
+    }
+
+    private static final class Cursor {
+        private final String lastUsername;
+        private final long expiresAt;
+
+        private Cursor(String lastUsername, long expiresAt) {
+            this.lastUsername = lastUsername;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.keycloak.multipleds.storage.user.cache;
+
+/**
+ * Bloom filter over case-insensitive usernames and emails. Built once by a single thread, then only read.
+ */
+public class UserBloomFilter {
+    /**
+     * Upper bound of the filter size (64 MiB), the false positive rate degrades above ~50 million entries at 1%
+     */
+    static final long MAX_BITS = 64L * 1024 * 1024 * 8;
+
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    public UserBloomFilter(long expectedInsertions, double falsePositiveRate) {
+        long n = Math.max(1, expectedInsertions);
+        double p = Math.min(Math.max(falsePositiveRate, Double.MIN_VALUE), 0.5);
+        long m = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+        m = Math.min(Math.max(m, 64), MAX_BITS);
+        this.bits = new long[(int) ((m + 63) / 64)];
+        this.bitCount = bits.length * 64L;
+        this.hashCount = (int) Math.max(1, Math.min(16, Math.round((double) bitCount / n * Math.log(2))));
+    }
+
+    public void put(String value) {
+        if (value == null) return;
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long index = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+            bits[(int) (index >>> 6)] |= 1L << index;
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long index = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getSizeInBytes() {
+        return bits.length * 8L;
+    }
+
+    /**
+     * FNV-1a over the lowercased characters, finalized with the SplitMix64 mixer. Lowercasing can only add false
+     * positives, and keeps the filter consistent with case-insensitive database collations.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= Character.toLowerCase(value.charAt(i));
+            hash *= 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+}
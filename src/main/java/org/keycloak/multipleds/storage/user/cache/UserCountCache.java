@@ -0,0 +1,60 @@
+package org.keycloak.multipleds.storage.user.cache;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
+
+/**
+ * User count of a datasource shared by all sessions. The first count is run by the caller, later ones in the
+ * background once the count is older than the refresh interval, while callers keep getting the previous one.
+ */
+public class UserCountCache {
+    private final long refreshMillis;
+    private final Executor executor;
+    private final IntSupplier counter;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile int count = -1;
+    private volatile long expiresAt;
+
+    /**
+     * @param refreshSeconds seconds a count is reused, 0 to count on every call
+     * @param executor       runs background refreshes
+     * @param counter        counts users in its own transaction, returning a negative value on failure
+     */
+    public UserCountCache(long refreshSeconds, Executor executor, IntSupplier counter) {
+        this.refreshMillis = TimeUnit.SECONDS.toMillis(Math.max(0, refreshSeconds));
+        this.executor = executor;
+        this.counter = counter;
+    }
+
+    /**
+     * @param sessionCounter counts users in the caller's session when no count is available
+     */
+    public int get(IntSupplier sessionCounter) {
+        int current = count;
+        if (refreshMillis == 0 || current < 0) {
+            current = sessionCounter.getAsInt();
+            update(current);
+            return current;
+        }
+        if (System.currentTimeMillis() >= expiresAt && refreshing.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                try {
+                    update(counter.getAsInt());
+                } finally {
+                    refreshing.set(false);
+                }
+            });
+        }
+        return current;
+    }
+
+    private void update(int count) {
+        if (count >= 0) {
+            this.count = count;
+        }
+        // a failed refresh is retried after the same interval
+        this.expiresAt = System.currentTimeMillis() + refreshMillis;
+    }
+}
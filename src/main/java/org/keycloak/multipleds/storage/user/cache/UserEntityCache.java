@@ -0,0 +1,172 @@
+package org.keycloak.multipleds.storage.user.cache;
+
+import org.keycloak.multipleds.storage.user.entities.UserEntity;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded near-cache of remote {@link UserEntity} snapshots for a single datasource.
+ * Snapshots are stored once by username and also reachable by id and email through secondary indexes, kept in sync
+ * on every put, eviction and invalidation, so that the maximum size counts users. Usernames and emails are matched
+ * case-insensitively, as Keycloak lowercases them while the datasource may not. Entries expire after the
+ * configured TTL and the least recently used ones are evicted once the cache is full.
+ * Returned snapshots are shared between sessions and must be treated as read-only.
+ */
+public class UserEntityCache {
+    private final int maxSize;
+    private final long ttlMillis;
+    // guarded by entries, like the secondary indexes
+    private final LinkedHashMap<String, CachedEntry> entries;
+    private final Map<String, String> usernamesById = new HashMap<>();
+    private final Map<String, String> usernamesByEmail = new HashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public UserEntityCache(int maxSize, long ttlSeconds) {
+        this.maxSize = Math.max(0, maxSize);
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(Math.max(0, ttlSeconds));
+        this.entries = new LinkedHashMap<String, CachedEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedEntry> eldest) {
+                if (size() <= UserEntityCache.this.maxSize) return false;
+                unindex(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0 && ttlMillis > 0;
+    }
+
+    public UserEntity getByUsername(String username) {
+        return get(normalize(username), null);
+    }
+
+    public UserEntity getById(String id) {
+        return get(id, usernamesById);
+    }
+
+    public UserEntity getByEmail(String email) {
+        return get(normalize(email), usernamesByEmail);
+    }
+
+    /**
+     * Stores a detached snapshot of the given entity; the entity itself is never retained
+     */
+    public void put(UserEntity entity) {
+        if (!isEnabled() || entity == null || entity.getUsername() == null) return;
+        String username = normalize(entity.getUsername());
+        CachedEntry entry = new CachedEntry(entity.snapshot(), System.currentTimeMillis() + ttlMillis);
+        synchronized (entries) {
+            CachedEntry previous = entries.remove(username);
+            if (previous != null) {
+                // the id or email may have changed
+                unindex(username, previous);
+            }
+            entries.put(username, entry);
+            index(usernamesById, entity.getId(), username);
+            index(usernamesByEmail, normalize(entity.getEmail()), username);
+        }
+    }
+
+    public void invalidateUsername(String username) {
+        if (!isEnabled() || username == null) return;
+        String key = normalize(username);
+        synchronized (entries) {
+            CachedEntry entry = entries.remove(key);
+            if (entry != null) {
+                unindex(key, entry);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            usernamesById.clear();
+            usernamesByEmail.clear();
+        }
+    }
+
+    /**
+     * @return number of cached users
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @param usernames secondary index the value is looked up in, null when the value is the username itself
+     */
+    private UserEntity get(String value, Map<String, String> usernames) {
+        if (!isEnabled() || value == null) return null;
+        CachedEntry entry;
+        synchronized (entries) {
+            String username = usernames != null ? usernames.get(value) : value;
+            entry = username != null ? entries.get(username) : null;
+            if (entry != null && entry.isExpired()) {
+                entries.remove(username);
+                unindex(username, entry);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.entity;
+    }
+
+    private static void index(Map<String, String> usernames, String value, String username) {
+        if (value != null) {
+            usernames.put(value, username);
+        }
+    }
+
+    /**
+     * Removes the secondary keys of the given entry, unless another user took them over since
+     */
+    private void unindex(String username, CachedEntry entry) {
+        if (entry.entity.getId() != null) {
+            usernamesById.remove(entry.entity.getId(), username);
+        }
+        if (entry.entity.getEmail() != null) {
+            usernamesByEmail.remove(normalize(entry.entity.getEmail()), username);
+        }
+    }
+
+    private static String normalize(String value) {
+        return value != null ? value.toLowerCase(Locale.ROOT) : null;
+    }
+
+    private static final class CachedEntry {
+        private final UserEntity entity;
+        private final long expiresAt;
+
+        private CachedEntry(UserEntity entity, long expiresAt) {
+            this.entity = entity;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.keycloak.multipleds.storage.user.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Negative lookup filter of a datasource: answers whether a username or email may exist in the remote users table,
+ * so that lookups of unknown users can skip the database. Until the first {@link UserBloomFilter} is built every
+ * value may exist; users added to the datasource after a build are only found after the next refresh.
+ */
+public class UserLookupFilter {
+    private static final long MIN_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final double falsePositiveRate;
+    private final long refreshMillis;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile UserBloomFilter filter;
+    private volatile long nextRefresh;
+
+    /**
+     * @param falsePositiveRate target false positive rate, 0 to disable the filter
+     * @param refreshSeconds    seconds between rebuilds, 0 to build only once
+     */
+    public UserLookupFilter(double falsePositiveRate, long refreshSeconds) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.refreshMillis = TimeUnit.SECONDS.toMillis(refreshSeconds);
+    }
+
+    public boolean isEnabled() {
+        return falsePositiveRate > 0;
+    }
+
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    public boolean mightContain(String usernameOrEmail) {
+        UserBloomFilter current = filter;
+        return current == null || usernameOrEmail == null || current.mightContain(usernameOrEmail);
+    }
+
+    /**
+     * @return memory used by the current filter, 0 until it is built
+     */
+    public long getSizeInBytes() {
+        UserBloomFilter current = filter;
+        return current == null ? 0 : current.getSizeInBytes();
+    }
+
+    /**
+     * @return true if the caller must rebuild the filter and report with {@link #refreshed} or {@link #refreshFailed}
+     */
+    public boolean startRefresh() {
+        return isEnabled() && System.currentTimeMillis() >= nextRefresh && refreshing.compareAndSet(false, true);
+    }
+
+    public void refreshed(UserBloomFilter filter) {
+        this.filter = filter;
+        this.nextRefresh = refreshMillis > 0 ? System.currentTimeMillis() + refreshMillis : Long.MAX_VALUE;
+        refreshing.set(false);
+    }
+
+    public void refreshFailed() {
+        this.nextRefresh = System.currentTimeMillis() + Math.max(refreshMillis, MIN_RETRY_MILLIS);
+        refreshing.set(false);
+    }
+}
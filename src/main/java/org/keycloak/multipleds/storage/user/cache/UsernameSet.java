@@ -0,0 +1,36 @@
+package org.keycloak.multipleds.storage.user.cache;
+
+import java.util.Arrays;
+
+/**
+ * Compact set of case-insensitive usernames, stored as sorted 64-bit hashes (8 bytes per username). Two usernames with
+ * the same hash are not told apart, so {@link #contains} can answer true for a username never added, never false for
+ * one added. Filled by a single thread, then only read.
+ */
+public class UsernameSet {
+    private long[] hashes = new long[1024];
+    private int size;
+    private boolean sorted = true;
+
+    public void add(String username) {
+        if (username == null) return;
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        hashes[size++] = UserBloomFilter.hash(username);
+        sorted = false;
+    }
+
+    public boolean contains(String username) {
+        if (username == null) return false;
+        if (!sorted) {
+            Arrays.sort(hashes, 0, size);
+            sorted = true;
+        }
+        return Arrays.binarySearch(hashes, 0, size, UserBloomFilter.hash(username)) >= 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,113 @@
+package org.keycloak.multipleds.storage.user.entities;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Bulkhead and circuit breaker of a datasource, shared by all sessions of a component.
+ * <p>
+ * At most {@code maxConcurrentQueries} queries run at once, further ones are rejected instead of waiting for a
+ * connection. After {@code failureThreshold} consecutive failed queries (ie. query timeouts) the breaker opens and
+ * every query is rejected for {@code openSeconds}; the first query after that is a trial which closes the breaker
+ * when it succeeds and opens it again when it fails.
+ */
+public class DatasourceGuard {
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final String datasource;
+    private final Semaphore permits;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final LongAdder rejections = new LongAdder();
+    private final Logger LOG = Logger.getLogger(DatasourceGuard.class.getName());
+    private volatile State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    /**
+     * @param maxConcurrentQueries 0 for no limit
+     * @param failureThreshold     consecutive failures opening the breaker, 0 to disable it
+     */
+    public DatasourceGuard(String datasource, int maxConcurrentQueries, int failureThreshold, long openSeconds) {
+        this.datasource = datasource;
+        this.permits = maxConcurrentQueries > 0 ? new Semaphore(maxConcurrentQueries) : null;
+        this.failureThreshold = Math.max(0, failureThreshold);
+        this.openMillis = TimeUnit.SECONDS.toMillis(Math.max(0, openSeconds));
+    }
+
+    /**
+     * @throws DatasourceUnavailableException when the query is rejected
+     */
+    public <T> T call(Supplier<T> query) {
+        if (permits != null && !permits.tryAcquire()) {
+            rejections.increment();
+            throw new DatasourceUnavailableException("Too many concurrent queries on datasource " + datasource);
+        }
+        try {
+            if (!allow()) {
+                rejections.increment();
+                throw new DatasourceUnavailableException("Circuit breaker of datasource " + datasource + " is open");
+            }
+            boolean success = false;
+            try {
+                T result = query.get();
+                success = true;
+                return result;
+            } finally {
+                record(success);
+            }
+        } finally {
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    public String getDatasource() {
+        return datasource;
+    }
+
+    private boolean allow() {
+        if (state == State.CLOSED) return true;
+        synchronized (this) {
+            if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+                // let a single trial query through
+                state = State.HALF_OPEN;
+                LOG.info(() -> "Circuit breaker of datasource " + datasource + " half open");
+                return true;
+            }
+            return state == State.CLOSED;
+        }
+    }
+
+    private void record(boolean success) {
+        if (failureThreshold == 0 || success && state == State.CLOSED && failures == 0) return;
+        synchronized (this) {
+            if (success) {
+                failures = 0;
+                if (state != State.CLOSED) {
+                    state = State.CLOSED;
+                    LOG.info(() -> "Circuit breaker of datasource " + datasource + " closed");
+                }
+            } else if (state == State.HALF_OPEN || ++failures >= failureThreshold && state == State.CLOSED) {
+                state = State.OPEN;
+                openedAt = System.currentTimeMillis();
+                LOG.warning(() -> "Circuit breaker of datasource " + datasource + " open for " + openMillis + " ms after " + failures + " failures");
+            }
+        }
+    }
+}
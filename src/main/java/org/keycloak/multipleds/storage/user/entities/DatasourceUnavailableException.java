@@ -0,0 +1,20 @@
+package org.keycloak.multipleds.storage.user.entities;
+
+import org.keycloak.models.ModelException;
+
+/**
+ * Thrown without querying the datasource when its circuit breaker is open or too many queries are already running,
+ * or when a guarded query failed or timed out
+ */
+public class DatasourceUnavailableException extends ModelException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DatasourceUnavailableException(String message) {
+        super(message);
+    }
+
+    public DatasourceUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
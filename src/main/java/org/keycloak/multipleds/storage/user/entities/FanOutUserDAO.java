@@ -0,0 +1,298 @@
+package org.keycloak.multipleds.storage.user.entities;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Queries several datasources concurrently, listed by priority: lookups return the hit of the first datasource
+ * holding the user, searches merge the results of all of them and users of earlier datasources hide users of later
+ * ones with the same username. Usernames are expected to be unique across datasources.
+ * <p>
+ * Only datasources whose DAO is detached from the Keycloak session, ie. plain JDBC on a connection pool of the
+ * provider, are queried on the executor. Entity managers and JTA transactions of the session are bound to the calling
+ * thread, so the DAOs using them are queried one after the other on the calling thread, like the first datasource,
+ * while the detached ones run. Each call waits for every datasource, so that a delegate is never used by two threads
+ * at once: the latency of the detached datasources is the one of the slowest instead of the sum of all of them.
+ * <p>
+ * A datasource rejected by its guard ({@link DatasourceUnavailableException}) counts as holding no user, so that the
+ * others keep serving lookups and searches. Queries only fail when every datasource is unavailable.
+ */
+public class FanOutUserDAO implements UserDAO {
+
+    private static final Comparator<UserEntity> BY_USERNAME = Comparator.comparing(UserEntity::getUsername,
+            Comparator.nullsLast(Comparator.<String>naturalOrder()));
+    private static final Comparator<UserEntity> BY_ID = Comparator.comparing(UserEntity::getId,
+            Comparator.nullsLast(Comparator.<String>naturalOrder()));
+
+    private final List<UserDAO> delegates;
+    private final Set<UserDAO> detached;
+    private final Executor executor;
+    private final Logger LOG = Logger.getLogger(FanOutUserDAO.class.getName());
+
+    /**
+     * @param delegates DAOs of each datasource, by decreasing priority
+     * @param detached  delegates that may be queried from another thread, as they use neither the entity manager nor
+     *                  the transaction of the Keycloak session
+     * @param executor  runs the queries of the detached delegates but the first one
+     */
+    public FanOutUserDAO(List<UserDAO> delegates, Collection<UserDAO> detached, Executor executor) {
+        this.delegates = new ArrayList<>(delegates);
+        this.detached = Collections.newSetFromMap(new IdentityHashMap<UserDAO, Boolean>());
+        this.detached.addAll(detached);
+        this.executor = executor;
+    }
+
+    @Override
+    public UserEntity findById(String id) {
+        return first(dao -> dao.findById(id));
+    }
+
+    @Override
+    public UserEntity findByUsername(String username) {
+        return first(dao -> dao.findByUsername(username));
+    }
+
+    @Override
+    public UserEntity findByEmail(String email) {
+        return first(dao -> dao.findByEmail(email));
+    }
+
+    @Override
+    public boolean existsByUsername(String username) {
+        return first(dao -> dao.existsByUsername(username) ? Boolean.TRUE : null) != null;
+    }
+
+    @Override
+    public String findPasswordByUsername(String username) {
+        return first(dao -> dao.findPasswordByUsername(username));
+    }
+
+    /**
+     * Updates the first datasource holding the user, on the calling thread so that the update joins its transaction
+     *
+     * @throws DatasourceUnavailableException when no available datasource holds the user and one was unavailable
+     */
+    @Override
+    public boolean updatePassword(String username, String password) {
+        DatasourceUnavailableException unavailable = null;
+        for (UserDAO dao : delegates) {
+            try {
+                if (dao.updatePassword(username, password)) return true;
+            } catch (DatasourceUnavailableException e) {
+                unavailable = e;
+            }
+        }
+        if (unavailable != null) {
+            throw unavailable;
+        }
+        return false;
+    }
+
+    /**
+     * Merges the pages of every datasource by id, ids are expected to be unique across datasources
+     */
+    @Override
+    public List<UserEntity> findAllAfter(String lastId, int maxResults) {
+        return merge(all(dao -> dao.findAllAfter(lastId, maxResults)), BY_ID)
+                .limit(maxResults)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Merges the pages of every datasource by watermark then id, the column is expected to have the same type in
+     * every datasource
+     */
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public List<Object[]> findModifiedAfter(String column, Object watermark, String lastId, int maxResults) {
+        List<Object[]> rows = new ArrayList<>();
+        for (List<Object[]> result : all(dao -> dao.findModifiedAfter(column, watermark, lastId, maxResults))) {
+            if (result != null) {
+                rows.addAll(result);
+            }
+        }
+        Comparator<Object[]> byWatermark = Comparator.comparing(row -> (Comparable) row[1]);
+        rows.sort(byWatermark.thenComparing(row -> ((UserEntity) row[0]).getId()));
+        return rows.size() > maxResults ? new ArrayList<>(rows.subList(0, maxResults)) : rows;
+    }
+
+    /**
+     * Reads the datasources one after the other on the calling thread, as the cursors are consumed lazily. Fails when
+     * one of them is unavailable, as a partial result would hide its users.
+     */
+    @Override
+    public Stream<Object[]> streamUsernamesAndEmails(int fetchSize) {
+        return delegates.stream().flatMap(dao -> dao.streamUsernamesAndEmails(fetchSize));
+    }
+
+    /**
+     * Every datasource returns its first {@code firstResult + maxResults} users, which are merged by username
+     * before the page is cut: deep pages cost more than with a single datasource.
+     */
+    @Override
+    public Stream<UserEntity> findStreamAll(Map<String, String> filters, int firstResult, int maxResults) {
+        int first = Math.max(firstResult, 0);
+        int limit = maxResults < 0 ? -1 : first + maxResults;
+        Stream<UserEntity> merged = merge(all(dao -> {
+            try (Stream<UserEntity> stream = dao.findStreamAll(filters, -1, limit)) {
+                return stream.collect(Collectors.toList());
+            }
+        }), BY_USERNAME).skip(first);
+        return maxResults < 0 ? merged : merged.limit(maxResults);
+    }
+
+    /**
+     * Each datasource returns its next {@code maxResults} users, which are merged by username
+     */
+    @Override
+    public Stream<UserEntity> findStreamAllAfter(Map<String, String> filters, String lastUsername, int maxResults) {
+        Stream<UserEntity> merged = merge(all(dao -> {
+            try (Stream<UserEntity> stream = dao.findStreamAllAfter(filters, lastUsername, maxResults)) {
+                return stream.collect(Collectors.toList());
+            }
+        }), BY_USERNAME);
+        return maxResults < 0 ? merged : merged.limit(maxResults);
+    }
+
+    @Override
+    public int getCount() {
+        int count = 0;
+        for (Integer datasourceCount : all(UserDAO::getCount)) {
+            if (datasourceCount != null) {
+                count += datasourceCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of the estimates of the available datasources, -1 if one of them has none
+     */
+    @Override
+    public long getApproximateCount() {
+        long count = 0;
+        for (Long datasourceCount : all(UserDAO::getApproximateCount)) {
+            if (datasourceCount == null) continue;
+            if (datasourceCount < 0) return -1;
+            count += datasourceCount;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        for (UserDAO dao : delegates) {
+            dao.close();
+        }
+    }
+
+    /**
+     * @return result of the first datasource with a non null one
+     */
+    private <T> T first(Function<UserDAO, T> query) {
+        for (T result : all(query)) {
+            if (result != null) return result;
+        }
+        return null;
+    }
+
+    /**
+     * Runs the query against every datasource, returning their results by priority once all of them completed. The
+     * result of an unavailable datasource is null.
+     *
+     * @throws DatasourceUnavailableException when every datasource is unavailable
+     */
+    private <T> List<T> all(Function<UserDAO, T> query) {
+        List<FutureTask<T>> tasks = new ArrayList<>(delegates.size());
+        for (int i = 0; i < delegates.size(); i++) {
+            UserDAO dao = delegates.get(i);
+            FutureTask<T> task = new FutureTask<>(() -> query.apply(dao));
+            tasks.add(task);
+            if (i > 0 && detached.contains(dao)) {
+                submit(task);
+            }
+        }
+        for (int i = 0; i < delegates.size(); i++) {
+            if (i == 0 || !detached.contains(delegates.get(i))) {
+                tasks.get(i).run();
+            }
+        }
+        RuntimeException failure = null;
+        DatasourceUnavailableException unavailable = null;
+        int unavailableCount = 0;
+        List<T> results = new ArrayList<>(delegates.size());
+        boolean interrupted = false;
+        for (FutureTask<T> task : tasks) {
+            while (true) {
+                try {
+                    results.add(task.get());
+                    break;
+                } catch (InterruptedException e) {
+                    // the delegate must not be reused before its query completed
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof DatasourceUnavailableException) {
+                        unavailable = (DatasourceUnavailableException) e.getCause();
+                        unavailableCount++;
+                    } else if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+                    }
+                    results.add(null);
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (unavailableCount == delegates.size()) {
+            throw unavailable;
+        }
+        if (unavailable != null) {
+            String message = unavailable.getMessage();
+            LOG.fine(() -> "Skipping unavailable datasource: " + message);
+        }
+        return results;
+    }
+
+    private void submit(FutureTask<?> task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            LOG.fine(() -> "Fan-out executor rejected a query, running it on the calling thread");
+            task.run();
+        }
+    }
+
+    /**
+     * Merges the results of every datasource, keeping the first user of each username
+     */
+    private static Stream<UserEntity> merge(List<List<UserEntity>> results, Comparator<UserEntity> order) {
+        Map<String, UserEntity> users = new LinkedHashMap<>();
+        for (List<UserEntity> result : results) {
+            if (result == null) continue;
+            for (UserEntity user : result) {
+                users.putIfAbsent(user.getUsername(), user);
+            }
+        }
+        return users.values().stream().sorted(order);
+    }
+}
@@ -0,0 +1,113 @@
+package org.keycloak.multipleds.storage.user.entities;
+
+import jakarta.persistence.LockTimeoutException;
+import jakarta.persistence.NoResultException;
+import jakarta.persistence.NonUniqueResultException;
+import jakarta.persistence.QueryTimeoutException;
+import org.keycloak.models.ModelException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Runs every query of the delegate through the {@link DatasourceGuard} of its datasource. Streams are guarded while
+ * their query is executed, not while they are consumed.
+ * <p>
+ * Failed queries are counted by the breaker. Those that leave the Keycloak transaction usable are thrown as
+ * {@link DatasourceUnavailableException}, so that callers degrade the same way as when the query is rejected: JPA
+ * query timeouts and every failure of the plain JDBC DAOs ({@link ModelException}). Other JPA failures have already
+ * marked the transaction of the entity manager for rollback, degrading would only fail the request at commit, so
+ * they are thrown as is.
+ */
+public class GuardedUserDAO implements UserDAO {
+
+    private final UserDAO delegate;
+    private final DatasourceGuard guard;
+
+    public GuardedUserDAO(UserDAO delegate, DatasourceGuard guard) {
+        this.delegate = delegate;
+        this.guard = guard;
+    }
+
+    @Override
+    public UserEntity findById(String id) {
+        return call(() -> delegate.findById(id));
+    }
+
+    @Override
+    public UserEntity findByUsername(String username) {
+        return call(() -> delegate.findByUsername(username));
+    }
+
+    @Override
+    public UserEntity findByEmail(String email) {
+        return call(() -> delegate.findByEmail(email));
+    }
+
+    @Override
+    public boolean existsByUsername(String username) {
+        return call(() -> delegate.existsByUsername(username));
+    }
+
+    @Override
+    public String findPasswordByUsername(String username) {
+        return call(() -> delegate.findPasswordByUsername(username));
+    }
+
+    @Override
+    public boolean updatePassword(String username, String password) {
+        return call(() -> delegate.updatePassword(username, password));
+    }
+
+    @Override
+    public List<UserEntity> findAllAfter(String lastId, int maxResults) {
+        return call(() -> delegate.findAllAfter(lastId, maxResults));
+    }
+
+    @Override
+    public List<Object[]> findModifiedAfter(String column, Object watermark, String lastId, int maxResults) {
+        return call(() -> delegate.findModifiedAfter(column, watermark, lastId, maxResults));
+    }
+
+    @Override
+    public Stream<Object[]> streamUsernamesAndEmails(int fetchSize) {
+        return call(() -> delegate.streamUsernamesAndEmails(fetchSize));
+    }
+
+    @Override
+    public Stream<UserEntity> findStreamAll(Map<String, String> filters, int firstResult, int maxResults) {
+        return call(() -> delegate.findStreamAll(filters, firstResult, maxResults));
+    }
+
+    @Override
+    public Stream<UserEntity> findStreamAllAfter(Map<String, String> filters, String lastUsername, int maxResults) {
+        return call(() -> delegate.findStreamAllAfter(filters, lastUsername, maxResults));
+    }
+
+    @Override
+    public int getCount() {
+        return call(delegate::getCount);
+    }
+
+    @Override
+    public long getApproximateCount() {
+        return call(delegate::getApproximateCount);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private <T> T call(Supplier<T> query) {
+        try {
+            return guard.call(query);
+        } catch (DatasourceUnavailableException | NoResultException | NonUniqueResultException e) {
+            throw e;
+        } catch (QueryTimeoutException | LockTimeoutException | ModelException e) {
+            throw new DatasourceUnavailableException("Query on datasource " + guard.getDatasource() + " failed: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package org.keycloak.multipleds.storage.user.entities;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.sql.DataSource;
+
+import org.keycloak.models.ModelException;
+import org.keycloak.multipleds.storage.user.metrics.ProviderMetrics;
+
+/**
+ * {@link JdbcUserDAO} also running searches, paging and counts as plain JDBC statements, for datasources without a
+ * persistence unit, ie. the connection pools managed by the provider. No Hibernate session factory is needed.
+ * <p>
+ * Searches are paginated in SQL, with {@code LIMIT ? OFFSET ?} or the standard {@code OFFSET ? ROWS FETCH NEXT ? ROWS
+ * ONLY} depending on the database: deep pages should still use {@link #findStreamAllAfter} instead.
+ */
+public class JdbcQueryUserDAO extends JdbcUserDAO {
+
+    // '\' is itself an escape character in MySQL string literals
+    private static final char LIKE_ESCAPE = '!';
+    private static final String FIND_ALL_AFTER = "SELECT " + COLUMNS + " FROM users WHERE id > ? AND attivo = ? ORDER BY id";
+    private static final String FIND_USERNAMES_AND_EMAILS = "SELECT utente, email FROM users WHERE attivo = ?";
+    private static final String COUNT = "SELECT COUNT(*) FROM users WHERE attivo = ?";
+
+    /**
+     * Columns of the users table, by {@link UserEntity} property
+     */
+    private static final Map<String, String> PROPERTY_COLUMNS;
+
+    static {
+        Map<String, String> columns = new HashMap<>();
+        columns.put("id", "id");
+        columns.put("username", "utente");
+        columns.put("email", "email");
+        columns.put("firstName", "name");
+        columns.put("lastName", "surname");
+        PROPERTY_COLUMNS = Collections.unmodifiableMap(columns);
+    }
+
+    private final Map<String, String> attributeMapping;
+    private final Logger LOG = Logger.getLogger(JdbcQueryUserDAO.class.getName());
+
+    /**
+     * @param attributeMapping additional user attributes that can be searched, mapped to {@link UserEntity} properties
+     * @param queryTimeout     seconds after which statements are cancelled by the driver, 0 for no timeout
+     */
+    public JdbcQueryUserDAO(DataSource dataSource, Map<String, String> attributeMapping, ProviderMetrics metrics, int queryTimeout) {
+        super(dataSource, metrics, queryTimeout);
+        this.attributeMapping = new HashMap<>(JpaUserDAO.DEFAULT_ATTRIBUTE_MAPPING);
+        this.attributeMapping.putAll(attributeMapping);
+    }
+
+    @Override
+    public List<UserEntity> findAllAfter(String lastId, int maxResults) {
+        LOG.fine(() -> String.format("findAllAfter: [%s,%d]", lastId, maxResults));
+        return execute("findAllAfter", FIND_ALL_AFTER, statement -> {
+            statement.setMaxRows(Math.max(0, maxResults));
+            statement.setString(1, lastId);
+            statement.setBoolean(2, true);
+            List<UserEntity> users = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    users.add(toEntity(resultSet));
+                }
+            }
+            return users;
+        });
+    }
+
+    @Override
+    public List<Object[]> findModifiedAfter(String column, Object watermark, String lastId, int maxResults) {
+        LOG.fine(() -> String.format("findModifiedAfter: %s [%s,%s,%d]", column, watermark, lastId, maxResults));
+        String condition = watermark == null ? column + " IS NOT NULL"
+                : "(" + column + " > ? OR (" + column + " = ? AND id > ?))";
+        String sql = "SELECT " + COLUMNS + ", " + column + " FROM users WHERE " + condition + " ORDER BY " + column + ", id";
+        return execute("findModifiedAfter", sql, statement -> {
+            statement.setMaxRows(Math.max(0, maxResults));
+            if (watermark != null) {
+                statement.setObject(1, watermark);
+                statement.setObject(2, watermark);
+                statement.setString(3, lastId);
+            }
+            List<Object[]> users = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    users.add(new Object[]{toEntity(resultSet), resultSet.getObject(8)});
+                }
+            }
+            return users;
+        });
+    }
+
+    /**
+     * Streams through a connection of its own, released when the stream is closed. Autocommit is disabled on it so
+     * that drivers such as PostgreSQL honour the fetch size with a cursor.
+     */
+    @Override
+    public Stream<Object[]> streamUsernamesAndEmails(int fetchSize) {
+        LOG.fine(() -> "streamUsernamesAndEmails");
+        return metrics.timeQuery("streamUsernamesAndEmails", () -> {
+            Connection connection = null;
+            try {
+                connection = dataSource.getConnection();
+                connection.setAutoCommit(false);
+                PreparedStatement statement = connection.prepareStatement(FIND_USERNAMES_AND_EMAILS);
+                statement.setFetchSize(fetchSize);
+                if (queryTimeout > 0) {
+                    statement.setQueryTimeout(queryTimeout);
+                }
+                statement.setBoolean(1, true);
+                ResultSet resultSet = statement.executeQuery();
+                Connection cursor = connection;
+                return StreamSupport.stream(new Spliterators.AbstractSpliterator<Object[]>(Long.MAX_VALUE,
+                        Spliterator.ORDERED | Spliterator.NONNULL) {
+                    @Override
+                    public boolean tryAdvance(Consumer<? super Object[]> action) {
+                        try {
+                            if (!resultSet.next()) return false;
+                            action.accept(new Object[]{resultSet.getString(1), resultSet.getString(2)});
+                            return true;
+                        } catch (SQLException e) {
+                            throw new ModelException("Failed to execute streamUsernamesAndEmails", e);
+                        }
+                    }
+                }, false).onClose(() -> release(cursor));
+            } catch (SQLException e) {
+                release(connection);
+                throw new ModelException("Failed to execute streamUsernamesAndEmails", e);
+            }
+        });
+    }
+
+    @Override
+    public Stream<UserEntity> findStreamAll(Map<String, String> filters, int firstResult, int maxResults) {
+        LOG.fine(() -> String.format("findStreamAll by filters: %s [%d,%d]", filters.keySet(), firstResult, maxResults));
+        return find("findStreamAll", filters, null, firstResult, maxResults);
+    }
+
+    @Override
+    public Stream<UserEntity> findStreamAllAfter(Map<String, String> filters, String lastUsername, int maxResults) {
+        LOG.fine(() -> String.format("findStreamAllAfter by filters: %s [%s,%d]", filters.keySet(), lastUsername, maxResults));
+        return find("findStreamAllAfter", filters, lastUsername, -1, maxResults);
+    }
+
+    @Override
+    public int getCount() {
+        LOG.fine(() -> "getUserCount");
+        return execute("getCount", COUNT, statement -> {
+            statement.setBoolean(1, true);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getInt(1) : 0;
+            }
+        });
+    }
+
+    /**
+     * Row estimate of the database, see {@link UserQueries#estimateRows}
+     */
+    @Override
+    public long getApproximateCount() {
+        LOG.fine(() -> "getApproximateCount");
+        return metrics.timeQuery("getApproximateCount", () -> {
+            try (Connection connection = dataSource.getConnection()) {
+                return UserQueries.estimateRows(connection, queryTimeout);
+            } catch (SQLException e) {
+                throw new ModelException("Failed to execute getApproximateCount", e);
+            }
+        });
+    }
+
+    /**
+     * Same filters as {@link JpaUserDAO#findStreamAll}, combined into a single statement. The SQL only depends on the
+     * filter names and on whether the page has an offset, so that statements are reused across searches.
+     */
+    private Stream<UserEntity> find(String name, Map<String, String> filters, String lastUsername, int firstResult, int maxResults) {
+        List<UserQueries.Condition> conditions = UserQueries.conditions(filters, attributeMapping);
+        if (conditions == null) {
+            return Stream.empty();
+        }
+        StringBuilder sql = new StringBuilder("SELECT " + COLUMNS + " FROM users WHERE attivo = ?");
+        List<Object> parameters = new ArrayList<>();
+        parameters.add(true);
+        for (UserQueries.Condition condition : conditions) {
+            List<String> matches = new ArrayList<>();
+            for (String property : condition.properties) {
+                String column = PROPERTY_COLUMNS.get(property);
+                if (column == null) {
+                    LOG.warning("Search by property " + property + " not supported");
+                    return Stream.empty();
+                }
+                matches.add(condition.like ? like(column) : column + " = ?");
+                parameters.add(condition.like ? UserQueries.likePattern(condition.value, LIKE_ESCAPE) : condition.value);
+            }
+            sql.append(" AND ").append(matches.size() == 1 ? matches.get(0) : "(" + String.join(" OR ", matches) + ")");
+        }
+        if (lastUsername != null) {
+            sql.append(" AND utente > ?");
+            parameters.add(lastUsername);
+        }
+        sql.append(" ORDER BY utente");
+        if (firstResult > 0) {
+            int limit = maxResults < 0 ? Integer.MAX_VALUE : maxResults;
+            if (UserQueries.supportsLimitOffset(databaseProduct())) {
+                sql.append(" LIMIT ? OFFSET ?");
+                parameters.add(limit);
+                parameters.add(firstResult);
+            } else {
+                sql.append(" OFFSET ? ROWS FETCH NEXT ? ROWS ONLY");
+                parameters.add(firstResult);
+                parameters.add(limit);
+            }
+        }
+        return execute(name, sql.toString(), statement -> {
+            // first pages are only limited, keeping the SQL of the filters
+            statement.setMaxRows(firstResult > 0 || maxResults < 0 ? 0 : maxResults);
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i));
+            }
+            List<UserEntity> users = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    users.add(toEntity(resultSet));
+                }
+            }
+            return users;
+        }).stream();
+    }
+
+    /**
+     * Case-insensitive LIKE condition on the given column, see {@link UserQueries#likePattern}
+     */
+    private static String like(String column) {
+        return "LOWER(" + column + ") LIKE ? ESCAPE '" + LIKE_ESCAPE + "'";
+    }
+
+    private void release(Connection connection) {
+        if (connection == null) return;
+        try {
+            // read only, nothing to commit
+            connection.rollback();
+            connection.setAutoCommit(true);
+        } catch (SQLException ex) {
+            LOG.warning(ex.getMessage());
+        }
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            LOG.severe(ex.getMessage());
+        }
+    }
+}
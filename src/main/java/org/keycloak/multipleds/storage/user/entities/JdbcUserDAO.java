@@ -0,0 +1,260 @@
+package org.keycloak.multipleds.storage.user.entities;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import javax.sql.DataSource;
+
+import org.keycloak.models.ModelException;
+import org.keycloak.multipleds.storage.user.metrics.ProviderMetrics;
+
+/**
+ * {@link UserDAO} running point lookups and password updates as plain JDBC statements on the datasource, without
+ * entity hydration nor persistence context. Returned entities are never managed. Searches, paging and counts are
+ * delegated.
+ * <p>
+ * A connection is borrowed on first use and its prepared statements are reused until {@link #close()}, ie. for the
+ * lifetime of the Keycloak session. Enable statement caching of the JDBC driver (ie. {@code cachePrepStmts=true}
+ * for MySQL) to also reuse them across sessions.
+ */
+public class JdbcUserDAO implements UserDAO {
+
+    // columns mapped by UserEntity
+    static final String COLUMNS = "id, utente, name, surname, email, password, attivo";
+    private static final String FIND_BY_ID = "SELECT " + COLUMNS + " FROM users WHERE id = ? AND attivo = ?";
+    private static final String FIND_BY_USERNAME = "SELECT " + COLUMNS + " FROM users WHERE utente = ? AND attivo = ?";
+    private static final String FIND_BY_EMAIL = "SELECT " + COLUMNS + " FROM users WHERE email = ? AND attivo = ?";
+    private static final String FIND_ID_BY_USERNAME = "SELECT id FROM users WHERE utente = ? AND attivo = ?";
+    private static final String FIND_PASSWORD_BY_USERNAME = "SELECT password FROM users WHERE utente = ? AND attivo = ?";
+    private static final String UPDATE_PASSWORD = "UPDATE users SET password = ? WHERE utente = ? AND attivo = ?";
+
+    protected final DataSource dataSource;
+    private final UserDAO queries;
+    protected final ProviderMetrics metrics;
+    protected final int queryTimeout;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final Logger LOG = Logger.getLogger(JdbcUserDAO.class.getName());
+    private Connection connection;
+    private String databaseProduct;
+
+    /**
+     * @param queries DAO of the same datasource running searches, paging and counts
+     */
+    public JdbcUserDAO(DataSource dataSource, UserDAO queries, ProviderMetrics metrics) {
+        this(dataSource, queries, metrics, 0);
+    }
+
+    /**
+     * @param queries      DAO of the same datasource running searches, paging and counts
+     * @param queryTimeout seconds after which statements are cancelled by the driver, 0 for no timeout
+     */
+    public JdbcUserDAO(DataSource dataSource, UserDAO queries, ProviderMetrics metrics, int queryTimeout) {
+        this.dataSource = dataSource;
+        this.queries = queries;
+        this.metrics = metrics;
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * For subclasses running searches, paging and counts themselves
+     */
+    protected JdbcUserDAO(DataSource dataSource, ProviderMetrics metrics, int queryTimeout) {
+        this(dataSource, null, metrics, queryTimeout);
+    }
+
+    @Override
+    public UserEntity findById(String id) {
+        LOG.fine(() -> String.format("findById: %s", id));
+        return execute("findById", FIND_BY_ID, statement -> findFirst(statement, id));
+    }
+
+    @Override
+    public UserEntity findByUsername(String username) {
+        LOG.fine(() -> "findByUsername: " + username);
+        return execute("findByUsername", FIND_BY_USERNAME, statement -> findFirst(statement, username));
+    }
+
+    @Override
+    public UserEntity findByEmail(String email) {
+        LOG.fine(() -> String.format("findByEmail: %s", email));
+        return execute("findByEmail", FIND_BY_EMAIL, statement -> findFirst(statement, email));
+    }
+
+    @Override
+    public boolean existsByUsername(String username) {
+        LOG.fine(() -> "existsByUsername: " + username);
+        return execute("existsByUsername", FIND_ID_BY_USERNAME, statement -> {
+            bind(statement, username);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        });
+    }
+
+    @Override
+    public String findPasswordByUsername(String username) {
+        LOG.fine(() -> "findPasswordByUsername: " + username);
+        return execute("findPasswordByUsername", FIND_PASSWORD_BY_USERNAME, statement -> {
+            bind(statement, username);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        });
+    }
+
+    @Override
+    public boolean updatePassword(String username, String password) {
+        LOG.fine(() -> "updatePassword: " + username);
+        return execute("updatePassword", UPDATE_PASSWORD, statement -> {
+            statement.setString(1, password);
+            statement.setString(2, username);
+            statement.setBoolean(3, true);
+            return statement.executeUpdate() > 0;
+        });
+    }
+
+    @Override
+    public List<UserEntity> findAllAfter(String lastId, int maxResults) {
+        return queries.findAllAfter(lastId, maxResults);
+    }
+
+    @Override
+    public List<Object[]> findModifiedAfter(String column, Object watermark, String lastId, int maxResults) {
+        return queries.findModifiedAfter(column, watermark, lastId, maxResults);
+    }
+
+    @Override
+    public Stream<Object[]> streamUsernamesAndEmails(int fetchSize) {
+        return queries.streamUsernamesAndEmails(fetchSize);
+    }
+
+    @Override
+    public Stream<UserEntity> findStreamAll(Map<String, String> filters, int firstResult, int maxResults) {
+        return queries.findStreamAll(filters, firstResult, maxResults);
+    }
+
+    @Override
+    public Stream<UserEntity> findStreamAllAfter(Map<String, String> filters, String lastUsername, int maxResults) {
+        return queries.findStreamAllAfter(filters, lastUsername, maxResults);
+    }
+
+    @Override
+    public int getCount() {
+        return queries.getCount();
+    }
+
+    @Override
+    public long getApproximateCount() {
+        return queries.getApproximateCount();
+    }
+
+    @Override
+    public void close() {
+        closeConnection();
+        if (queries != null) {
+            queries.close();
+        }
+    }
+
+    /**
+     * Runs the given statement, prepared on the connection of this DAO and reused for the same SQL
+     */
+    protected <T> T execute(String name, String sql, Statement<T> statement) {
+        return metrics.timeQuery(name, () -> {
+            try {
+                return statement.execute(prepare(sql));
+            } catch (SQLException e) {
+                // the connection may be broken, the next call borrows a new one
+                closeConnection();
+                throw new ModelException("Failed to execute " + name, e);
+            }
+        });
+    }
+
+    /**
+     * @return lowercased product name of the database, read once from the connection of this DAO
+     */
+    protected String databaseProduct() {
+        if (databaseProduct == null) {
+            try {
+                databaseProduct = UserQueries.databaseProduct(connection());
+            } catch (SQLException e) {
+                closeConnection();
+                throw new ModelException("Failed to read the database product", e);
+            }
+        }
+        return databaseProduct;
+    }
+
+    private Connection connection() throws SQLException {
+        if (connection == null) {
+            connection = dataSource.getConnection();
+        }
+        return connection;
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = connection().prepareStatement(sql);
+            if (queryTimeout > 0) {
+                statement.setQueryTimeout(queryTimeout);
+            }
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private static void bind(PreparedStatement statement, String value) throws SQLException {
+        statement.setMaxRows(1);
+        statement.setString(1, value);
+        statement.setBoolean(2, true);
+    }
+
+    private static UserEntity findFirst(PreparedStatement statement, String value) throws SQLException {
+        bind(statement, value);
+        try (ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? toEntity(resultSet) : null;
+        }
+    }
+
+    /**
+     * @return detached entity of the current row, selected with {@link #COLUMNS}
+     */
+    protected static UserEntity toEntity(ResultSet resultSet) throws SQLException {
+        UserEntity entity = new UserEntity();
+        entity.setId(resultSet.getString(1));
+        entity.setUsername(resultSet.getString(2));
+        entity.setFirstName(resultSet.getString(3));
+        entity.setLastName(resultSet.getString(4));
+        entity.setEmail(resultSet.getString(5));
+        entity.setPassword(resultSet.getString(6));
+        entity.setEnabled(resultSet.getBoolean(7));
+        return entity;
+    }
+
+    private void closeConnection() {
+        try {
+            for (PreparedStatement statement : statements.values()) {
+                statement.close();
+            }
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (SQLException ex) {
+            LOG.severe(ex.getMessage());
+        }
+        statements.clear();
+        connection = null;
+    }
+
+    protected interface Statement<T> {
+        T execute(PreparedStatement statement) throws SQLException;
+    }
+}
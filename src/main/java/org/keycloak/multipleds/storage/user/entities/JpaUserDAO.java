@@ -0,0 +1,383 @@
+package org.keycloak.multipleds.storage.user.entities;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.TypedQuery;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Expression;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.hibernate.Session;
+import org.keycloak.models.UserModel;
+import org.keycloak.multipleds.storage.user.metrics.ProviderMetrics;
+
+/**
+ * {@link UserDAO} of a single datasource, through its JPA entity manager
+ */
+public class JpaUserDAO implements UserDAO {
+
+    private static final String HINT_FETCH_SIZE = "org.hibernate.fetchSize";
+    private static final String HINT_READ_ONLY = "org.hibernate.readOnly";
+    private static final String HINT_QUERY_TIMEOUT = "jakarta.persistence.query.timeout";
+    private static final char LIKE_ESCAPE = '\\';
+    // columns mapped by UserEntity
+    private static final String COLUMNS = "id, utente, name, surname, email, password, attivo";
+
+    /**
+     * Entity properties that can be searched, by user attribute name
+     */
+    public static final Map<String, String> DEFAULT_ATTRIBUTE_MAPPING;
+
+    static {
+        Map<String, String> mapping = new HashMap<>();
+        mapping.put(UserModel.USERNAME, "username");
+        mapping.put(UserModel.EMAIL, "email");
+        mapping.put(UserModel.FIRST_NAME, "firstName");
+        mapping.put(UserModel.LAST_NAME, "lastName");
+        DEFAULT_ATTRIBUTE_MAPPING = Collections.unmodifiableMap(mapping);
+    }
+
+    private final EntityManager entityManager;
+    private final int fetchSize;
+    private final Map<String, String> attributeMapping;
+    private final ProviderMetrics metrics;
+    private final int queryTimeout;
+    private final Logger LOG = Logger.getLogger(JpaUserDAO.class.getName());
+
+    public JpaUserDAO(EntityManager entityManager) {
+        this(entityManager, 0);
+    }
+
+    /**
+     * @param fetchSize JDBC fetch size used to stream results through a server-side cursor, 0 to load every result
+     *                  list in memory before streaming it
+     */
+    public JpaUserDAO(EntityManager entityManager, int fetchSize) {
+        this(entityManager, fetchSize, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @param attributeMapping additional user attributes that can be searched, mapped to {@link UserEntity} properties
+     */
+    public JpaUserDAO(EntityManager entityManager, int fetchSize, Map<String, String> attributeMapping) {
+        this(entityManager, fetchSize, attributeMapping, ProviderMetrics.noop());
+    }
+
+    /**
+     * @param metrics query timers of the datasource
+     */
+    public JpaUserDAO(EntityManager entityManager, int fetchSize, Map<String, String> attributeMapping, ProviderMetrics metrics) {
+        this(entityManager, fetchSize, attributeMapping, metrics, 0);
+    }
+
+    /**
+     * @param queryTimeout seconds after which queries are cancelled, 0 for no timeout. Set on each query of this DAO
+     *                     only, as the entity manager may be shared with Keycloak.
+     */
+    public JpaUserDAO(EntityManager entityManager, int fetchSize, Map<String, String> attributeMapping, ProviderMetrics metrics,
+                      int queryTimeout) {
+        this.entityManager = entityManager;
+        this.metrics = metrics;
+        this.queryTimeout = queryTimeout;
+        this.fetchSize = fetchSize;
+        this.attributeMapping = new HashMap<>(DEFAULT_ATTRIBUTE_MAPPING);
+        this.attributeMapping.putAll(attributeMapping);
+    }
+
+    @Override
+    public UserEntity findById(String id) {
+        LOG.fine(() -> String.format("findById: %s", id));
+        TypedQuery<UserEntity> query = timed(entityManager.createNamedQuery("getUserById", UserEntity.class));
+        query.setParameter("id", id);
+        return getFirstResult("findById", query);
+    }
+
+    @Override
+    public UserEntity findByUsername(String username) {
+        LOG.fine(() -> "findByUsername: " + username);
+        TypedQuery<UserEntity> query = timed(entityManager.createNamedQuery("getUserByUsername", UserEntity.class));
+        query.setParameter("username", username);
+        return getFirstResult("findByUsername", query);
+    }
+
+    @Override
+    public UserEntity findByEmail(String email) {
+        LOG.fine(() -> String.format("findByEmail: %s", email));
+        TypedQuery<UserEntity> query = timed(entityManager.createNamedQuery("getUserByEmail", UserEntity.class));
+        query.setParameter("email", email);
+        return getFirstResult("findByEmail", query);
+    }
+
+    /**
+     * @return true if an enabled user exists with the given username, without loading the entity
+     */
+    @Override
+    public boolean existsByUsername(String username) {
+        LOG.fine(() -> "existsByUsername: " + username);
+        TypedQuery<String> query = timed(entityManager.createNamedQuery("getEnabledUserIdByUsername", String.class));
+        query.setParameter("username", username);
+        query.setMaxResults(1);
+        return metrics.timeQuery("existsByUsername", () -> !query.getResultList().isEmpty());
+    }
+
+    /**
+     * @return password hash of the enabled user with the given username, without loading the entity
+     */
+    @Override
+    public String findPasswordByUsername(String username) {
+        LOG.fine(() -> "findPasswordByUsername: " + username);
+        TypedQuery<String> query = timed(entityManager.createNamedQuery("getPasswordByUsername", String.class));
+        query.setParameter("username", username);
+        query.setMaxResults(1);
+        List<String> results = metrics.timeQuery("findPasswordByUsername", query::getResultList);
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    public Stream<UserEntity> findStreamById(String id, int firstResult, int maxResults) {
+        LOG.fine(() -> String.format("getUserById: %s", id));
+        TypedQuery<UserEntity> query = timed(entityManager.createNamedQuery("getUserById", UserEntity.class));
+        query.setParameter("id", id);
+        return getResultStream("findStreamById", query, firstResult, maxResults);
+    }
+
+    public Stream<UserEntity> findStreamByUsername(String username, int firstResult, int maxResults) {
+        LOG.fine(() -> "findStreamByUsername: " + username);
+        TypedQuery<UserEntity> query = timed(entityManager.createNamedQuery("getUserByUsername", UserEntity.class));
+        query.setParameter("username", username);
+        return getResultStream("findStreamByUsername", query, firstResult, maxResults);
+    }
+
+    public Stream<UserEntity> findStreamByPattern(String pattern, int firstResult, int maxResults) {
+        LOG.fine(() -> "findStreamByPattern: " + pattern);
+        TypedQuery<UserEntity> query = timed(entityManager.createNamedQuery("getUserByPattern", UserEntity.class));
+        query.setParameter("pattern", pattern);
+        return getResultStream("findStreamByPattern", query, firstResult, maxResults);
+    }
+
+    public Stream<UserEntity> findStreamByEmail(String email, int firstResult, int maxResults) {
+        LOG.fine(() -> String.format("findStreamByEmail: %s", email));
+        TypedQuery<UserEntity> query = timed(entityManager.createNamedQuery("getUserByEmail", UserEntity.class));
+        query.setParameter("email", email);
+        return getResultStream("findStreamByEmail", query, firstResult, maxResults);
+    }
+
+    public List<UserEntity> findAll(int firstResult, int maxResults) {
+        LOG.fine(() -> String.format("getAllUsers: [%d,%d]", firstResult, maxResults));
+        TypedQuery<UserEntity> query = timed(entityManager.createNamedQuery("getAllUsers", UserEntity.class));
+        query.setHint(HINT_READ_ONLY, true);
+        if (firstResult != -1) {
+            query.setFirstResult(firstResult);
+        }
+        if (maxResults != -1) {
+            query.setMaxResults(maxResults);
+        }
+        return detach(metrics.timeQuery("findAll", query::getResultList));
+    }
+
+    /**
+     * Runs an update statement in the caller's transaction, as returned entities are never managed
+     */
+    @Override
+    public boolean updatePassword(String username, String password) {
+        LOG.fine(() -> "updatePassword: " + username);
+        Query query = timed(entityManager.createNamedQuery("updatePasswordByUsername"));
+        query.setParameter("password", password);
+        query.setParameter("username", username);
+        return metrics.timeQuery("updatePassword", query::executeUpdate) > 0;
+    }
+
+    /**
+     * Keyset paging over all enabled users ordered by id, returning detached entities
+     *
+     * @param lastId id of the last user of the previous page, empty string for the first page
+     */
+    @Override
+    public List<UserEntity> findAllAfter(String lastId, int maxResults) {
+        LOG.fine(() -> String.format("findAllAfter: [%s,%d]", lastId, maxResults));
+        TypedQuery<UserEntity> query = timed(entityManager.createNamedQuery("getUsersAfterId", UserEntity.class));
+        query.setParameter("lastId", lastId);
+        query.setMaxResults(maxResults);
+        query.setHint(HINT_READ_ONLY, true);
+        return detach(metrics.timeQuery("findAllAfter", query::getResultList));
+    }
+
+    /**
+     * Native query, as the watermark column is not mapped by {@link UserEntity}. An index on (column, id) makes each
+     * page cost the same whatever the table size.
+     */
+    @Override
+    public List<Object[]> findModifiedAfter(String column, Object watermark, String lastId, int maxResults) {
+        LOG.fine(() -> String.format("findModifiedAfter: %s [%s,%s,%d]", column, watermark, lastId, maxResults));
+        String condition = watermark == null ? column + " IS NOT NULL"
+                : "(" + column + " > ?1 OR (" + column + " = ?1 AND id > ?2))";
+        Query query = timed(entityManager.createNativeQuery("SELECT " + COLUMNS + ", " + column + " FROM users WHERE " + condition
+                + " ORDER BY " + column + ", id"));
+        if (watermark != null) {
+            query.setParameter(1, watermark);
+            query.setParameter(2, lastId);
+        }
+        query.setMaxResults(maxResults);
+        List<?> rows = metrics.timeQuery("findModifiedAfter", query::getResultList);
+        List<Object[]> users = new ArrayList<>(rows.size());
+        for (Object result : rows) {
+            Object[] row = (Object[]) result;
+            UserEntity entity = new UserEntity();
+            entity.setId(String.valueOf(row[0]));
+            entity.setUsername((String) row[1]);
+            entity.setFirstName((String) row[2]);
+            entity.setLastName((String) row[3]);
+            entity.setEmail((String) row[4]);
+            entity.setPassword((String) row[5]);
+            // boolean, bit or tinyint depending on the database
+            entity.setEnabled(row[6] instanceof Boolean ? (Boolean) row[6] : row[6] != null && ((Number) row[6]).intValue() != 0);
+            users.add(new Object[]{entity, row[7]});
+        }
+        return users;
+    }
+
+    /**
+     * Streams the username and email of all enabled users through a database cursor, without loading entities
+     *
+     * @param fetchSize JDBC fetch size of the cursor
+     */
+    @Override
+    public Stream<Object[]> streamUsernamesAndEmails(int fetchSize) {
+        LOG.fine(() -> "streamUsernamesAndEmails");
+        TypedQuery<Object[]> query = timed(entityManager.createNamedQuery("getUsernamesAndEmails", Object[].class));
+        query.setHint(HINT_FETCH_SIZE, fetchSize);
+        return metrics.timeQuery("streamUsernamesAndEmails", query::getResultStream);
+    }
+
+    /**
+     * Combines every filter into a single query, paginated in the database. Filters on attributes without a
+     * mapped column cannot match any remote user and yield an empty stream.
+     */
+    @Override
+    public Stream<UserEntity> findStreamAll(Map<String, String> filters, int firstResult, int maxResults) {
+        LOG.fine(() -> String.format("findStreamAll by filters: %s [%d,%d]", filters.keySet(), firstResult, maxResults));
+        return find("findStreamAll", filters, null, firstResult, maxResults);
+    }
+
+    @Override
+    public Stream<UserEntity> findStreamAllAfter(Map<String, String> filters, String lastUsername, int maxResults) {
+        LOG.fine(() -> String.format("findStreamAllAfter by filters: %s [%s,%d]", filters.keySet(), lastUsername, maxResults));
+        return find("findStreamAllAfter", filters, lastUsername, -1, maxResults);
+    }
+
+    private Stream<UserEntity> find(String name, Map<String, String> filters, String lastUsername, int firstResult, int maxResults) {
+        List<UserQueries.Condition> conditions = UserQueries.conditions(filters, attributeMapping);
+        if (conditions == null) {
+            return Stream.empty();
+        }
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<UserEntity> criteria = builder.createQuery(UserEntity.class);
+        Root<UserEntity> user = criteria.from(UserEntity.class);
+        List<Predicate> predicates = new ArrayList<>();
+        predicates.add(builder.isTrue(user.get("enabled")));
+        for (UserQueries.Condition condition : conditions) {
+            List<Predicate> matches = new ArrayList<>();
+            for (String property : condition.properties) {
+                matches.add(condition.like ? like(builder, user.get(property), condition.value)
+                        : builder.equal(user.get(property), condition.value));
+            }
+            predicates.add(matches.size() == 1 ? matches.get(0) : builder.or(matches.toArray(new Predicate[0])));
+        }
+        if (lastUsername != null) {
+            predicates.add(builder.greaterThan(user.get("username"), lastUsername));
+        }
+        criteria.select(user).where(predicates.toArray(new Predicate[0])).orderBy(builder.asc(user.get("username")));
+        return getResultStream(name, timed(entityManager.createQuery(criteria)), firstResult, maxResults);
+    }
+
+    /**
+     * Case-insensitive LIKE predicate, see {@link UserQueries#likePattern}
+     */
+    private static Predicate like(CriteriaBuilder builder, Expression<String> column, String value) {
+        return builder.like(builder.lower(column), UserQueries.likePattern(value, LIKE_ESCAPE), LIKE_ESCAPE);
+    }
+
+    @Override
+    public int getCount() {
+        LOG.fine(() -> "getUserCount");
+        Object count = metrics.timeQuery("getCount", () -> timed(entityManager.createNamedQuery("getUserCount")).getSingleResult());
+        return ((Number) count).intValue();
+    }
+
+    /**
+     * Row estimate of the database, see {@link UserQueries#estimateRows}
+     */
+    @Override
+    public long getApproximateCount() {
+        LOG.fine(() -> "getApproximateCount");
+        return metrics.timeQuery("getApproximateCount", () -> entityManager.unwrap(Session.class)
+                .doReturningWork(connection -> UserQueries.estimateRows(connection, queryTimeout)));
+    }
+
+    /**
+     * Entities are loaded read-only, without dirty checking snapshot, and detached so that the persistence context
+     * does not grow with the number of users read in a session
+     */
+    private UserEntity getFirstResult(String name, TypedQuery<UserEntity> query) {
+        query.setMaxResults(1);
+        query.setHint(HINT_READ_ONLY, true);
+        List<UserEntity> results = detach(metrics.timeQuery(name, query::getResultList));
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    private Stream<UserEntity> getResultStream(String name, TypedQuery<UserEntity> query, int firstResult, int maxResults) {
+        if (firstResult != -1) {
+            query.setFirstResult(firstResult);
+        }
+        if (maxResults != -1) {
+            query.setMaxResults(maxResults);
+        }
+        query.setHint(HINT_READ_ONLY, true);
+        if (fetchSize <= 0) {
+            return detach(metrics.timeQuery(name, query::getResultList)).stream();
+        }
+        // entities are detached as they are consumed, so the persistence context does not grow with the result set
+        query.setHint(HINT_FETCH_SIZE, fetchSize);
+        return metrics.timeQuery(name, query::getResultStream).map(entity -> {
+            entityManager.detach(entity);
+            return entity;
+        });
+    }
+
+    /**
+     * Applies the query timeout to the given query only
+     */
+    private <Q extends Query> Q timed(Q query) {
+        if (queryTimeout > 0) {
+            query.setHint(HINT_QUERY_TIMEOUT, (int) TimeUnit.SECONDS.toMillis(queryTimeout));
+        }
+        return query;
+    }
+
+    private List<UserEntity> detach(List<UserEntity> entities) {
+        for (UserEntity entity : entities) {
+            entityManager.detach(entity);
+        }
+        return entities;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (entityManager != null) {
+                this.entityManager.close();
+            }
+        } catch (Exception ex) {
+            LOG.severe(ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.keycloak.multipleds.storage.user.entities;
+
+import io.agroal.api.AgroalDataSource;
+import io.agroal.api.AgroalDataSourceMetrics;
+import io.agroal.api.configuration.AgroalConnectionPoolConfiguration;
+import io.agroal.api.configuration.supplier.AgroalDataSourceConfigurationSupplier;
+import io.agroal.api.security.NamePrincipal;
+import io.agroal.api.security.SimplePassword;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Connection pool of a legacy DB defined by the provider configuration instead of a Quarkus datasource and persistence
+ * unit, shared by all sessions of a component. It is only queried through JDBC, by {@link JdbcQueryUserDAO}, on
+ * autocommit connections outside of the Keycloak transaction: no Hibernate session factory is bootstrapped at runtime.
+ * <p>
+ * Prepared statements are cached by the JDBC driver, for the drivers known to support it (MySQL, MariaDB, PostgreSQL).
+ */
+public class ManagedPool implements AutoCloseable {
+
+    // connections idle for longer are validated before being handed out
+    private static final Duration IDLE_VALIDATION = Duration.ofSeconds(30);
+
+    private final String datasource;
+    private final AgroalDataSource dataSource;
+    private final int maxSize;
+    private final Logger LOG = Logger.getLogger(ManagedPool.class.getName());
+
+    /**
+     * @param acquisitionTimeoutSeconds seconds a query waits for a connection when all are in use, 0 to wait forever
+     * @param statementCacheSize        prepared statements cached per connection, 0 to disable
+     * @throws SQLException when the pool cannot be created, ie. no driver accepts the URL
+     */
+    public ManagedPool(String datasource, String jdbcUrl, String username, String password, int minSize, int maxSize,
+                       int acquisitionTimeoutSeconds, int statementCacheSize) throws SQLException {
+        this.datasource = datasource;
+        this.maxSize = Math.max(1, maxSize);
+        int poolMinSize = Math.max(0, Math.min(minSize, this.maxSize));
+        Map<String, String> jdbcProperties = statementCacheProperties(jdbcUrl, statementCacheSize);
+        AgroalDataSourceConfigurationSupplier configuration = new AgroalDataSourceConfigurationSupplier()
+                .metricsEnabled(true)
+                .connectionPoolConfiguration(pool -> pool
+                        .initialSize(poolMinSize)
+                        .minSize(poolMinSize)
+                        .maxSize(this.maxSize)
+                        .acquisitionTimeout(Duration.ofSeconds(Math.max(0, acquisitionTimeoutSeconds)))
+                        .connectionValidator(AgroalConnectionPoolConfiguration.ConnectionValidator.defaultValidator())
+                        .idleValidationTimeout(IDLE_VALIDATION)
+                        .connectionFactoryConfiguration(factory -> {
+                            factory.jdbcUrl(jdbcUrl);
+                            if (username != null && !username.isEmpty()) {
+                                factory.principal(new NamePrincipal(username));
+                            }
+                            if (password != null && !password.isEmpty()) {
+                                factory.credential(new SimplePassword(password));
+                            }
+                            jdbcProperties.forEach(factory::jdbcProperty);
+                            return factory;
+                        }));
+        this.dataSource = AgroalDataSource.from(configuration);
+        LOG.info(() -> "Created connection pool of datasource " + datasource + " (" + poolMinSize + " to " + this.maxSize
+                + " connections, statement cache " + (jdbcProperties.isEmpty() ? "disabled" : statementCacheSize) + ")");
+    }
+
+    public String getDatasource() {
+        return datasource;
+    }
+
+    public AgroalDataSource getDataSource() {
+        return dataSource;
+    }
+
+    public AgroalDataSourceMetrics getMetrics() {
+        return dataSource.getMetrics();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Closes every connection of the pool, including those still in use
+     */
+    @Override
+    public void close() {
+        dataSource.close();
+    }
+
+    /**
+     * Driver properties enabling the client side prepared statement cache, unless already set in the URL
+     */
+    private static Map<String, String> statementCacheProperties(String jdbcUrl, int statementCacheSize) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        if (statementCacheSize <= 0) return properties;
+        if (jdbcUrl.startsWith("jdbc:mysql:") || jdbcUrl.startsWith("jdbc:mariadb:")) {
+            properties.put("cachePrepStmts", "true");
+            properties.put("prepStmtCacheSize", String.valueOf(statementCacheSize));
+        } else if (jdbcUrl.startsWith("jdbc:postgresql:")) {
+            properties.put("preparedStatementCacheQueries", String.valueOf(statementCacheSize));
+        }
+        properties.keySet().removeIf(property -> jdbcUrl.contains(property + "="));
+        return properties;
+    }
+}
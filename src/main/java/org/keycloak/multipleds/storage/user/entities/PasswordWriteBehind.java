@@ -0,0 +1,216 @@
+package org.keycloak.multipleds.storage.user.entities;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Password hashes waiting to be written to the datasources, shared by all sessions of a component. Writes are
+ * coalesced by username, so that only the last password of a user is written and never overwritten by an earlier
+ * one, and flushed in JDBC batches. A batch that fails is retried at the next flush.
+ * <p>
+ * The queue is kept in memory only and is not durable, as the legacy hashes must not be stored anywhere else than
+ * in the datasources: callers flag pending writes elsewhere and enqueue them again after a crash or restart.
+ */
+public class PasswordWriteBehind {
+
+    private static final String UPDATE_PASSWORD = "UPDATE users SET password = ? WHERE utente = ? AND attivo = ?";
+
+    private final Map<String, DataSource> dataSources;
+    private final int batchSize;
+    private final Consumer<List<PendingPassword>> written;
+    // by username, in enqueue order
+    private final LinkedHashMap<String, PendingPassword> pending = new LinkedHashMap<>();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final Logger LOG = Logger.getLogger(PasswordWriteBehind.class.getName());
+
+    /**
+     * @param dataSources datasources by decreasing priority, by name: a user is written to the first one holding it
+     * @param written     called with the pending passwords written, or dropped as their user was not found, by each
+     *                    successful batch
+     */
+    public PasswordWriteBehind(Map<String, DataSource> dataSources, int batchSize, Consumer<List<PendingPassword>> written) {
+        this.dataSources = new LinkedHashMap<>(dataSources);
+        this.batchSize = Math.max(1, batchSize);
+        this.written = written;
+    }
+
+    /**
+     * Replaces any password of the same user still waiting to be written
+     */
+    public void enqueue(String realmId, String username, String password) {
+        PendingPassword pendingPassword = new PendingPassword(realmId, username, password, System.currentTimeMillis());
+        synchronized (pending) {
+            pending.remove(username);
+            pending.put(username, pendingPassword);
+        }
+    }
+
+    /**
+     * Writes every pending password, one batch after the other, stopping at the first failed batch
+     */
+    public void flush() {
+        List<PendingPassword> batch;
+        while (!(batch = next()).isEmpty()) {
+            try {
+                write(batch);
+            } catch (SQLException | RuntimeException e) {
+                LOG.log(Level.WARNING, "Failed to write " + batch.size() + " passwords, retrying later", e);
+                failures.add(batch.size());
+                requeue(batch);
+                return;
+            }
+            writes.add(batch.size());
+            try {
+                written.accept(batch);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Failed to complete " + batch.size() + " written passwords", e);
+            }
+        }
+    }
+
+    /**
+     * @return whether a password of the user is waiting to be written
+     */
+    public boolean isPending(String username) {
+        synchronized (pending) {
+            return pending.containsKey(username);
+        }
+    }
+
+    public int getQueueDepth() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * @return seconds the oldest pending password has been waiting for, 0 when none is
+     */
+    public double getLagSeconds() {
+        synchronized (pending) {
+            Iterator<PendingPassword> oldest = pending.values().iterator();
+            return oldest.hasNext() ? (System.currentTimeMillis() - oldest.next().getEnqueuedAt()) / 1000.0 : 0;
+        }
+    }
+
+    public long getWriteCount() {
+        return writes.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    private List<PendingPassword> next() {
+        List<PendingPassword> batch = new ArrayList<>(batchSize);
+        synchronized (pending) {
+            Iterator<PendingPassword> iterator = pending.values().iterator();
+            while (batch.size() < batchSize && iterator.hasNext()) {
+                batch.add(iterator.next());
+                iterator.remove();
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Puts a failed batch back in front of the queue, unless a newer password of the same user was enqueued meanwhile
+     */
+    private void requeue(List<PendingPassword> batch) {
+        synchronized (pending) {
+            Map<String, PendingPassword> newer = new LinkedHashMap<>(pending);
+            pending.clear();
+            for (PendingPassword pendingPassword : batch) {
+                if (!newer.containsKey(pendingPassword.getUsername())) {
+                    pending.put(pendingPassword.getUsername(), pendingPassword);
+                }
+            }
+            pending.putAll(newer);
+        }
+    }
+
+    /**
+     * Updates each datasource in a single batch and transaction, users not found are tried on the next datasource
+     */
+    private void write(List<PendingPassword> batch) throws SQLException {
+        List<PendingPassword> remaining = batch;
+        for (Map.Entry<String, DataSource> dataSource : dataSources.entrySet()) {
+            if (remaining.isEmpty()) return;
+            List<PendingPassword> missing = new ArrayList<>();
+            try (Connection connection = dataSource.getValue().getConnection();
+                 PreparedStatement statement = connection.prepareStatement(UPDATE_PASSWORD)) {
+                boolean autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                try {
+                    for (PendingPassword pendingPassword : remaining) {
+                        statement.setString(1, pendingPassword.getPassword());
+                        statement.setString(2, pendingPassword.getUsername());
+                        statement.setBoolean(3, true);
+                        statement.addBatch();
+                    }
+                    // SUCCESS_NO_INFO counts as updated
+                    int[] counts = statement.executeBatch();
+                    connection.commit();
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] == 0) {
+                            missing.add(remaining.get(i));
+                        }
+                    }
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+            }
+            int updated = remaining.size() - missing.size();
+            LOG.fine(() -> "Wrote " + updated + " passwords to datasource " + dataSource.getKey());
+            remaining = missing;
+        }
+        for (PendingPassword pendingPassword : remaining) {
+            LOG.warning("User " + pendingPassword.getUsername() + " not found in any datasource, dropping its password update");
+        }
+    }
+
+    public static class PendingPassword {
+        private final String realmId;
+        private final String username;
+        private final String password;
+        private final long enqueuedAt;
+
+        PendingPassword(String realmId, String username, String password, long enqueuedAt) {
+            this.realmId = realmId;
+            this.username = username;
+            this.password = password;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        public String getRealmId() {
+            return realmId;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public long getEnqueuedAt() {
+            return enqueuedAt;
+        }
+    }
+}
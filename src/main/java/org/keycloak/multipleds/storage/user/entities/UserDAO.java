@@ -1,146 +1,91 @@
 package org.keycloak.multipleds.storage.user.entities;
 
-import jakarta.persistence.EntityManager;
-import jakarta.persistence.TypedQuery;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.logging.Logger;
+import java.util.Set;
 import java.util.stream.Stream;
 
-import org.keycloak.models.UserModel;
-
-public class UserDAO {
-
-    private final EntityManager entityManager;
-    private final Logger LOG = Logger.getLogger(UserDAO.class.getName());
-
-    public UserDAO(EntityManager entityManager) {
-        this.entityManager = entityManager;
-    }
-
-    public UserEntity findById(String id) {
-        return findStreamById(id, -1, 1).findFirst().orElse(null);
-    }
-
-    public UserEntity findByUsername(String username) {
-        return findStreamByUsername(username, -1, 1).findFirst().orElse(null);
-    }
-
-    public UserEntity findByEmail(String email) {
-        return findStreamByEmail(email, -1, 1).findFirst().orElse(null);
-    }
-
-    public Stream<UserEntity> findStreamById(String id, int firstResult, int maxResults) {
-        LOG.info(String.format("getUserById: %s", id));
-        TypedQuery<UserEntity> query = entityManager.createNamedQuery("getUserById", UserEntity.class);
-        query.setParameter("id", id);
-        if (firstResult != -1) {
-            query.setFirstResult(firstResult);
-        }
-        if (maxResults != -1) {
-            query.setMaxResults(maxResults);
-        }
-        return query.getResultList().stream();
-    }
-
-    public Stream<UserEntity> findStreamByUsername(String username, int firstResult, int maxResults) {
-        LOG.info("findStreamByUsername: " + username);
-        TypedQuery<UserEntity> query = entityManager.createNamedQuery("getUserByUsername", UserEntity.class);
-        query.setParameter("username", username);
-        if (firstResult != -1) {
-            query.setFirstResult(firstResult);
-        }
-        if (maxResults != -1) {
-            query.setMaxResults(maxResults);
-        }
-        return query.getResultList().stream();
-    }
-
-    public Stream<UserEntity> findStreamByPattern(String pattern, int firstResult, int maxResults) {
-        LOG.info("findStreamByPattern: " + pattern);
-        TypedQuery<UserEntity> query = entityManager.createNamedQuery("getUserByPattern", UserEntity.class);
-        query.setParameter("pattern", pattern);
-        if (firstResult != -1) {
-            query.setFirstResult(firstResult);
-        }
-        if (maxResults != -1) {
-            query.setMaxResults(maxResults);
-        }
-        return query.getResultList().stream();
-    }
-
-    public Stream<UserEntity> findStreamByEmail(String email, int firstResult, int maxResults) {
-        LOG.info(String.format("findStreamByEmail: %s", email));
-        TypedQuery<UserEntity> query = entityManager.createNamedQuery("getUserByEmail", UserEntity.class);
-        query.setParameter("email", email);
-        if (firstResult != -1) {
-            query.setFirstResult(firstResult);
-        }
-        if (maxResults != -1) {
-            query.setMaxResults(maxResults);
-        }
-        return query.getResultList().stream();
-    }
-
-    public List<UserEntity> findAll(int firstResult, int maxResults) {
-        LOG.info(String.format("getAllUsers: [%d,%d]", firstResult, maxResults));
-        TypedQuery<UserEntity> query = entityManager.createNamedQuery("getAllUsers", UserEntity.class);
-        if (firstResult != -1) {
-            query.setFirstResult(firstResult);
-        }
-        if (maxResults != -1) {
-            query.setMaxResults(maxResults);
-        }
-        return query.getResultList();
-    }
-
-    public Stream<UserEntity> findStreamAll(Map<String, String> filters, int firstResult, int maxResults) {
-        LOG.info(String.format("findStreamAll by filters: [%d,%d]", firstResult, maxResults));
-        for (Map.Entry<String, String> entry : filters.entrySet()) {
-            switch (entry.getKey()) {
-                case UserModel.EMAIL:
-                    return findStreamByEmail(entry.getValue(), firstResult, maxResults);
-                case UserModel.USERNAME:
-                    return findStreamByUsername(entry.getValue(), firstResult, maxResults);
-                case UserModel.IDP_USER_ID:
-                    return findStreamById(entry.getValue(), firstResult, maxResults);
-                case UserModel.SEARCH:
-                    return findStreamByPattern(entry.getValue(), firstResult, maxResults);
-                default:
-                    if (!UserModel.INCLUDE_SERVICE_ACCOUNT.equals(entry.getKey())) {
-                        LOG.warning("Search by attribute " + entry.getKey() + " not supported");
-                    }
-            }
-        }
-        return Stream.empty();
-    }
-
-    public List<UserEntity> search(String search, int firstResult, int maxResults) {
-        LOG.info(String.format("searchForUser: [%s,%d,%d]", search, firstResult, maxResults));
-        TypedQuery<UserEntity> query = entityManager.createNamedQuery("searchForUser", UserEntity.class);
-        query.setParameter("search", "%" + search.toLowerCase() + "%");
-        if (firstResult != -1) {
-            query.setFirstResult(firstResult);
-        }
-        if (maxResults != -1) {
-            query.setMaxResults(maxResults);
-        }
-        return query.getResultList();
-    }
-
-    public int getCount() {
-        LOG.info("getUserCount");
-        Object count = entityManager.createNamedQuery("getUserCount").getSingleResult();
-        return ((Number) count).intValue();
-    }
-
-    public void close() {
-        try {
-            if (entityManager != null) {
-                this.entityManager.close();
-            }
-        } catch (Exception ex) {
-            LOG.severe(ex.getMessage());
-        }
-    }
+/**
+ * Remote user queries used by the provider. Only enabled users are returned.
+ */
+public interface UserDAO {
+
+    /**
+     * {@link UserEntity} properties that user attributes can be mapped to for searches
+     */
+    Set<String> SEARCHABLE_PROPERTIES = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("id", "username", "email", "firstName", "lastName")));
+
+    UserEntity findById(String id);
+
+    UserEntity findByUsername(String username);
+
+    UserEntity findByEmail(String email);
+
+    /**
+     * @return true if an enabled user exists with the given username, without loading the entity
+     */
+    boolean existsByUsername(String username);
+
+    /**
+     * @return password hash of the enabled user with the given username, without loading the entity
+     */
+    String findPasswordByUsername(String username);
+
+    /**
+     * Sets the password hash of the enabled user with the given username, in the caller's transaction
+     *
+     * @return true if the user was found
+     */
+    boolean updatePassword(String username, String password);
+
+    /**
+     * Keyset paging over all enabled users ordered by id, returning detached entities
+     *
+     * @param lastId id of the last user of the previous page, empty string for the first page
+     */
+    List<UserEntity> findAllAfter(String lastId, int maxResults);
+
+    /**
+     * Keyset paging over the users changed after a watermark, disabled ones included, ordered by watermark then id
+     *
+     * @param column    column of the users table increased on every change, ie. a last modified timestamp or an
+     *                  update sequence. Rows where it is null are never returned.
+     * @param watermark column value of the last user of the previous page, null for the first page of a full pass
+     * @param lastId    id of the last user of the previous page, empty string for the first page
+     * @return rows of a detached {@link UserEntity} and its column value
+     */
+    List<Object[]> findModifiedAfter(String column, Object watermark, String lastId, int maxResults);
+
+    /**
+     * Streams the username and email of all enabled users, without loading entities
+     *
+     * @param fetchSize JDBC fetch size of the cursor
+     */
+    Stream<Object[]> streamUsernamesAndEmails(int fetchSize);
+
+    /**
+     * Users matching every filter ordered by username, -1 for no first or max result. Filters on attributes without
+     * a mapped property cannot match any remote user and yield an empty stream.
+     */
+    Stream<UserEntity> findStreamAll(Map<String, String> filters, int firstResult, int maxResults);
+
+    /**
+     * Keyset paging over {@link #findStreamAll}: users matching every filter with a username after the given one,
+     * so that deep pages cost the same as the first one
+     */
+    Stream<UserEntity> findStreamAllAfter(Map<String, String> filters, String lastUsername, int maxResults);
+
+    int getCount();
+
+    /**
+     * @return estimated number of rows of the users table from the database statistics, including disabled users,
+     * or -1 when not available
+     */
+    long getApproximateCount();
+
+    void close();
 }
@@ -1,16 +1,20 @@
 package org.keycloak.multipleds.storage.user.entities;
 
 import jakarta.persistence.*;
+import org.keycloak.multipleds.storage.user.utils.DigestAlgorithm;
 
 @NamedQueries({
         @NamedQuery(name = "getUserByUsername", query = "select u from UserEntity u where u.username = :username AND enabled=true"),
         @NamedQuery(name = "getUserById", query = "select u from UserEntity u where u.id = :id AND enabled=true"),
         @NamedQuery(name = "getUserByEmail", query = "select u from UserEntity u where u.email = :email AND enabled=true"),
+        @NamedQuery(name = "getEnabledUserIdByUsername", query = "select u.id from UserEntity u where u.username = :username AND enabled=true"),
+        @NamedQuery(name = "getPasswordByUsername", query = "select u.password from UserEntity u where u.username = :username AND enabled=true"),
+        @NamedQuery(name = "updatePasswordByUsername", query = "update UserEntity u set u.password = :password where u.username = :username AND enabled=true"),
         @NamedQuery(name = "getUserByPattern", query = "select u from UserEntity u where (u.email = :pattern OR u.username = :pattern) AND enabled=true"),
         @NamedQuery(name = "getUserCount", query = "select count(u) from UserEntity u WHERE enabled=true"),
         @NamedQuery(name = "getAllUsers", query = "select u from UserEntity u WHERE enabled=true"),
-        @NamedQuery(name = "searchForUser", query = "select u from UserEntity u where " +
-                "( lower(u.username) like :search or u.email like :search ) AND enabled=true order by u.username"),
+        @NamedQuery(name = "getUsernamesAndEmails", query = "select u.username, u.email from UserEntity u WHERE enabled=true"),
+        @NamedQuery(name = "getUsersAfterId", query = "select u from UserEntity u where u.id > :lastId AND enabled=true order by u.id"),
 })
 @Entity
 @Table(name = "users")
@@ -84,4 +88,26 @@ public class UserEntity {
     public void setEnabled(boolean enabled) {
         this.enabled = enabled;
     }
+
+    /**
+     * Digest of the fields mirrored on the local user, used to detect remote changes without comparing each field
+     */
+    public String fingerprint() {
+        return DigestAlgorithm.SHA1.hex(username + '\0' + email + '\0' + firstName + '\0' + lastName + '\0' + enabled);
+    }
+
+    /**
+     * Detached copy of this entity, safe to share outside of the persistence context it was loaded from
+     */
+    public UserEntity snapshot() {
+        UserEntity copy = new UserEntity();
+        copy.setId(id);
+        copy.setUsername(username);
+        copy.setFirstName(firstName);
+        copy.setLastName(lastName);
+        copy.setEmail(email);
+        copy.setPassword(password);
+        copy.setEnabled(enabled);
+        return copy;
+    }
 }
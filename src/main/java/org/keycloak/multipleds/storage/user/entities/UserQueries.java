@@ -0,0 +1,160 @@
+package org.keycloak.multipleds.storage.user.entities;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.keycloak.models.UserModel;
+
+/**
+ * Search semantics and database specific SQL shared by {@link JpaUserDAO} and {@link JdbcQueryUserDAO}, so that both
+ * return the same users for the same filters
+ */
+final class UserQueries {
+
+    private static final String MYSQL_ROW_ESTIMATE = "SELECT TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'users'";
+    private static final String POSTGRESQL_ROW_ESTIMATE = "SELECT reltuples::bigint FROM pg_class WHERE oid = to_regclass('users')";
+    private static final Logger LOG = Logger.getLogger(UserQueries.class.getName());
+
+    private UserQueries() {
+    }
+
+    /**
+     * Condition on a user, matching when any of its properties matches the value
+     */
+    static final class Condition {
+        final List<String> properties;
+        final String value;
+        final boolean like;
+
+        private Condition(List<String> properties, String value, boolean like) {
+            this.properties = properties;
+            this.value = value;
+            this.like = like;
+        }
+    }
+
+    /**
+     * Translates Keycloak search filters into conditions on {@link UserEntity} properties, all of which must match.
+     * Filters on attributes without a mapped property cannot match any remote user.
+     *
+     * @param attributeMapping {@link UserEntity} properties by user attribute name
+     * @return conditions of the filters, null if no user can match
+     */
+    static List<Condition> conditions(Map<String, String> filters, Map<String, String> attributeMapping) {
+        // Keycloak only passes exact=false for attribute searches that may match partially
+        boolean exact = !"false".equalsIgnoreCase(filters.get(UserModel.EXACT));
+        List<Condition> conditions = new ArrayList<>();
+        for (Map.Entry<String, String> entry : filters.entrySet()) {
+            String value = entry.getValue();
+            switch (entry.getKey()) {
+                case UserModel.SEARCH:
+                    String search = value == null ? "" : value.trim();
+                    if (search.length() > 1 && search.startsWith("\"") && search.endsWith("\"")) {
+                        conditions.add(new Condition(Arrays.asList("email", "username"), search.substring(1, search.length() - 1), false));
+                    } else if (!search.isEmpty() && !search.equals("*")) {
+                        conditions.add(new Condition(Arrays.asList("email", "username"), search, true));
+                    }
+                    break;
+                case UserModel.IDP_USER_ID:
+                    conditions.add(new Condition(Collections.singletonList("id"), value, false));
+                    break;
+                case UserModel.ENABLED:
+                    if (!Boolean.parseBoolean(value)) {
+                        return null;
+                    }
+                    break;
+                case UserModel.INCLUDE_SERVICE_ACCOUNT:
+                case UserModel.EXACT:
+                case UserModel.IDP_ALIAS:
+                    break;
+                default:
+                    String property = attributeMapping.get(entry.getKey());
+                    if (property == null) {
+                        LOG.warning("Search by attribute " + entry.getKey() + " not supported");
+                        return null;
+                    }
+                    conditions.add(new Condition(Collections.singletonList(property), value, !exact));
+            }
+        }
+        return conditions;
+    }
+
+    /**
+     * Keycloak search semantics: {@code *} matches any characters and the value is otherwise a prefix. Value and
+     * column are both lowercased, so that the search is case-insensitive whatever the collation of the column: an
+     * index on {@code lower(column)} is needed for the prefix to be matched from an index.
+     *
+     * @return lowercased LIKE pattern of the given search value
+     */
+    static String likePattern(String value, char escape) {
+        StringBuilder pattern = new StringBuilder();
+        boolean wildcard = false;
+        for (char c : value.toLowerCase(Locale.ROOT).toCharArray()) {
+            wildcard = c == '*';
+            if (wildcard) {
+                pattern.append('%');
+            } else {
+                if (c == '%' || c == '_' || c == escape) {
+                    pattern.append(escape);
+                }
+                pattern.append(c);
+            }
+        }
+        if (!wildcard) {
+            pattern.append('%');
+        }
+        return pattern.toString();
+    }
+
+    /**
+     * @return lowercased product name of the database behind the connection
+     */
+    static String databaseProduct(Connection connection) throws SQLException {
+        return connection.getMetaData().getDatabaseProductName().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return true if the database pages with {@code LIMIT ? OFFSET ?}, false for the standard
+     * {@code OFFSET ? ROWS FETCH NEXT ? ROWS ONLY} (ie. Oracle, SQL Server, DB2)
+     */
+    static boolean supportsLimitOffset(String product) {
+        return product.contains("mysql") || product.contains("mariadb") || product.contains("postgresql")
+                || product.contains("h2") || product.contains("sqlite") || product.contains("hsql");
+    }
+
+    /**
+     * Reads the row estimate maintained by MySQL/MariaDB (information_schema) or PostgreSQL (pg_class.reltuples,
+     * -1 until the table is analyzed)
+     *
+     * @param queryTimeout seconds after which the statement is cancelled, 0 for no timeout
+     * @return estimated number of users, -1 if unknown or not supported by the database
+     */
+    static long estimateRows(Connection connection, int queryTimeout) throws SQLException {
+        String product = databaseProduct(connection);
+        String sql;
+        if (product.contains("mysql") || product.contains("mariadb")) {
+            sql = MYSQL_ROW_ESTIMATE;
+        } else if (product.contains("postgresql")) {
+            sql = POSTGRESQL_ROW_ESTIMATE;
+        } else {
+            return -1L;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            if (queryTimeout > 0) {
+                statement.setQueryTimeout(queryTimeout);
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getObject(1) != null ? resultSet.getLong(1) : -1L;
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package org.keycloak.multipleds.storage.user.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.keycloak.multipleds.storage.user.cache.UserEntityCache;
+import org.keycloak.multipleds.storage.user.cache.UserLookupFilter;
+import org.keycloak.multipleds.storage.user.entities.DatasourceGuard;
+import org.keycloak.multipleds.storage.user.entities.ManagedPool;
+import org.keycloak.multipleds.storage.user.entities.PasswordWriteBehind;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer meters of a single provider instance, tagged with its component id and datasource name.
+ * Meters are registered once per component and shared by all its sessions; they are exposed by Keycloak's metrics
+ * endpoint when metrics are enabled.
+ * <p>
+ * The {@code datasource} tag holds the configured datasource, comma separated list included, on the meters of the
+ * component, and a single datasource on the meters of one of them (query timers, breaker and pool).
+ */
+public class ProviderMetrics {
+    private static final String PREFIX = "keycloak.multipleds.";
+    private static final ProviderMetrics NOOP = new ProviderMetrics(new CompositeMeterRegistry(), "", "");
+
+    private final MeterRegistry registry;
+    private final Tags tags;
+    private final List<Meter> meters;
+    private final Map<String, Timer> queryTimers = new ConcurrentHashMap<>();
+    private final Map<String, ProviderMetrics> datasources = new ConcurrentHashMap<>();
+    private final Timer hashTimer;
+    private final Counter validPasswords;
+    private final Counter invalidPasswords;
+    private final Counter missingPasswords;
+    private final Counter migratedPasswords;
+    private final Counter failedPasswordMigrations;
+    private final Counter localUsersCreated;
+    private final Counter localUsersReused;
+    private final Counter localUsersUpdated;
+    private final Counter evictions;
+    private final Counter skippedValidations;
+    private final Counter skippedLookups;
+
+    public ProviderMetrics(MeterRegistry registry, String componentId, String datasource) {
+        this.registry = registry;
+        this.tags = Tags.of("component", componentId, "datasource", datasource);
+        this.meters = new CopyOnWriteArrayList<>();
+        this.hashTimer = register(Timer.builder(PREFIX + "password.hash")
+                .description("Time spent hashing passwords with the legacy scheme")
+                .tags(tags).register(registry));
+        this.validPasswords = passwordCounter("valid");
+        this.invalidPasswords = passwordCounter("invalid");
+        this.missingPasswords = passwordCounter("missing");
+        this.migratedPasswords = passwordMigrationCounter("migrated");
+        this.failedPasswordMigrations = passwordMigrationCounter("failed");
+        this.localUsersCreated = localUserCounter("created");
+        this.localUsersReused = localUserCounter("reused");
+        this.localUsersUpdated = localUserCounter("updated");
+        this.evictions = register(Counter.builder(PREFIX + "validation.evictions")
+                .description("Imported users evicted because they are no longer active in the datasource")
+                .tags(tags).register(registry));
+        this.skippedValidations = register(Counter.builder(PREFIX + "validation.skipped")
+                .description("Imported users trusted without querying the datasource, as they were validated within the revalidation interval")
+                .tags(tags).register(registry));
+        this.skippedLookups = register(Counter.builder(PREFIX + "lookup.filter.skipped")
+                .description("Username and email lookups answered by the negative lookup filter without querying the datasource")
+                .tags(tags).register(registry));
+    }
+
+    /**
+     * Query timers tagged with a single datasource of a component, the other meters being the ones of the component
+     */
+    private ProviderMetrics(ProviderMetrics component, String datasource) {
+        this.registry = component.registry;
+        this.tags = component.tags.and("datasource", datasource);
+        this.meters = component.meters;
+        this.hashTimer = component.hashTimer;
+        this.validPasswords = component.validPasswords;
+        this.invalidPasswords = component.invalidPasswords;
+        this.missingPasswords = component.missingPasswords;
+        this.migratedPasswords = component.migratedPasswords;
+        this.failedPasswordMigrations = component.failedPasswordMigrations;
+        this.localUsersCreated = component.localUsersCreated;
+        this.localUsersReused = component.localUsersReused;
+        this.localUsersUpdated = component.localUsersUpdated;
+        this.evictions = component.evictions;
+        this.skippedValidations = component.skippedValidations;
+        this.skippedLookups = component.skippedLookups;
+    }
+
+    /**
+     * Metrics of the DAO of one of the datasources of this component, when it has several: its queries are timed
+     * apart from the other datasources. Removed from the registry with the meters of the component.
+     */
+    public ProviderMetrics forDatasource(String datasource) {
+        return datasources.computeIfAbsent(datasource, name -> new ProviderMetrics(this, name));
+    }
+
+    /**
+     * Metrics that are not exported anywhere, for DAOs created outside of the provider factory. Shared, never closed.
+     */
+    public static ProviderMetrics noop() {
+        return NOOP;
+    }
+
+    public <T> T timeQuery(String query, Supplier<T> supplier) {
+        return queryTimers.computeIfAbsent(query, name -> register(Timer.builder(PREFIX + "query")
+                .description("Queries run against the datasource")
+                .tags(tags).tag("query", name)
+                .register(registry))).record(supplier);
+    }
+
+    public void recordHash(long startNanos) {
+        hashTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void passwordValidated(boolean valid) {
+        (valid ? validPasswords : invalidPasswords).increment();
+    }
+
+    public void passwordMissing() {
+        missingPasswords.increment();
+    }
+
+    public void passwordMigrated() {
+        migratedPasswords.increment();
+    }
+
+    public void passwordMigrationFailed() {
+        failedPasswordMigrations.increment();
+    }
+
+    public void localUserCreated() {
+        localUsersCreated.increment();
+    }
+
+    public void localUserReused() {
+        localUsersReused.increment();
+    }
+
+    public void localUserUpdated() {
+        localUsersUpdated.increment();
+    }
+
+    public void userEvicted() {
+        evictions.increment();
+    }
+
+    public void validationSkipped() {
+        skippedValidations.increment();
+    }
+
+    public void lookupSkipped() {
+        skippedLookups.increment();
+    }
+
+    public void bindCache(UserEntityCache cache) {
+        register(FunctionCounter.builder(PREFIX + "cache.requests", cache, UserEntityCache::getHitCount)
+                .description("Remote user cache lookups")
+                .tags(tags).tag("result", "hit").register(registry));
+        register(FunctionCounter.builder(PREFIX + "cache.requests", cache, UserEntityCache::getMissCount)
+                .description("Remote user cache lookups")
+                .tags(tags).tag("result", "miss").register(registry));
+        register(Gauge.builder(PREFIX + "cache.size", cache, UserEntityCache::size)
+                .description("Remote users cached")
+                .tags(tags).register(registry));
+    }
+
+    public void bindLookupFilter(UserLookupFilter filter) {
+        register(Gauge.builder(PREFIX + "lookup.filter.size", filter, UserLookupFilter::getSizeInBytes)
+                .description("Memory used by the negative lookup filter")
+                .baseUnit("bytes")
+                .tags(tags).register(registry));
+    }
+
+    /**
+     * Meters of the guard of one of the datasources of this component
+     */
+    public void bindGuard(DatasourceGuard guard) {
+        register(Gauge.builder(PREFIX + "breaker.state", guard, g -> g.getState().ordinal())
+                .description("Circuit breaker state of the datasource: 0 closed, 1 half open, 2 open")
+                .tags(tags.and("datasource", guard.getDatasource())).register(registry));
+        register(FunctionCounter.builder(PREFIX + "breaker.rejections", guard, DatasourceGuard::getRejectionCount)
+                .description("Queries rejected by the circuit breaker or the maximum number of concurrent queries")
+                .tags(tags.and("datasource", guard.getDatasource())).register(registry));
+    }
+
+    /**
+     * Saturation meters of the connection pool of one of the datasources of this component
+     */
+    public void bindPool(ManagedPool pool) {
+        register(Gauge.builder(PREFIX + "pool.connections", pool, p -> p.getMetrics().activeCount())
+                .description("Connections of the pool, by state")
+                .tags(tags.and("datasource", pool.getDatasource())).tag("state", "active").register(registry));
+        register(Gauge.builder(PREFIX + "pool.connections", pool, p -> p.getMetrics().availableCount())
+                .description("Connections of the pool, by state")
+                .tags(tags.and("datasource", pool.getDatasource())).tag("state", "idle").register(registry));
+        register(Gauge.builder(PREFIX + "pool.pending", pool, p -> p.getMetrics().awaitingCount())
+                .description("Queries waiting for a connection of the pool")
+                .tags(tags.and("datasource", pool.getDatasource())).register(registry));
+        register(Gauge.builder(PREFIX + "pool.max", pool, ManagedPool::getMaxSize)
+                .description("Maximum number of connections of the pool")
+                .tags(tags.and("datasource", pool.getDatasource())).register(registry));
+        register(Gauge.builder(PREFIX + "pool.max.used", pool, p -> p.getMetrics().maxUsedCount())
+                .description("Highest number of connections of the pool in use at once")
+                .tags(tags.and("datasource", pool.getDatasource())).register(registry));
+        register(FunctionCounter.builder(PREFIX + "pool.acquisitions", pool, p -> p.getMetrics().acquireCount())
+                .description("Connections acquired from the pool")
+                .tags(tags.and("datasource", pool.getDatasource())).register(registry));
+        register(FunctionCounter.builder(PREFIX + "pool.acquisition.wait", pool, p -> p.getMetrics().blockingTimeTotal().toNanos() / 1e9)
+                .description("Time spent waiting for a connection of the pool")
+                .baseUnit("seconds")
+                .tags(tags.and("datasource", pool.getDatasource())).register(registry));
+    }
+
+    public void bindWriteBehind(PasswordWriteBehind writeBehind) {
+        register(Gauge.builder(PREFIX + "password.writebehind.depth", writeBehind, PasswordWriteBehind::getQueueDepth)
+                .description("Password updates waiting to be written to the datasource")
+                .tags(tags).register(registry));
+        register(Gauge.builder(PREFIX + "password.writebehind.lag", writeBehind, PasswordWriteBehind::getLagSeconds)
+                .description("Age of the oldest password update waiting to be written to the datasource")
+                .baseUnit("seconds")
+                .tags(tags).register(registry));
+        register(FunctionCounter.builder(PREFIX + "password.writebehind.writes", writeBehind, PasswordWriteBehind::getWriteCount)
+                .description("Password updates written to the datasource, by outcome")
+                .tags(tags).tag("outcome", "written").register(registry));
+        register(FunctionCounter.builder(PREFIX + "password.writebehind.writes", writeBehind, PasswordWriteBehind::getFailureCount)
+                .description("Password updates written to the datasource, by outcome")
+                .tags(tags).tag("outcome", "failed").register(registry));
+    }
+
+    /**
+     * Removes every meter of this component from the registry
+     */
+    public void close() {
+        for (Meter meter : meters) {
+            registry.remove(meter);
+        }
+        meters.clear();
+        queryTimers.clear();
+        datasources.clear();
+    }
+
+    private Counter passwordCounter(String outcome) {
+        return register(Counter.builder(PREFIX + "password.validations")
+                .description("Password validations against the datasource, by outcome")
+                .tags(tags).tag("outcome", outcome).register(registry));
+    }
+
+    private Counter passwordMigrationCounter(String outcome) {
+        return register(Counter.builder(PREFIX + "password.migrations")
+                .description("Legacy passwords copied to the local credential store after a successful login, by outcome")
+                .tags(tags).tag("outcome", outcome).register(registry));
+    }
+
+    private Counter localUserCounter(String action) {
+        return register(Counter.builder(PREFIX + "local.users")
+                .description("Local user copies resolved while creating adapters, by action")
+                .tags(tags).tag("action", action).register(registry));
+    }
+
+    private <M extends Meter> M register(M meter) {
+        meters.add(meter);
+        return meter;
+    }
+}
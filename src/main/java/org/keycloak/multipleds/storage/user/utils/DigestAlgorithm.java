@@ -0,0 +1,94 @@
+package org.keycloak.multipleds.storage.user.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Message digests supported by {@link SaltedDigestPasswordHasher}, each with a per-thread {@link MessageDigest}
+ * and output buffer so that hashing a password does not look up a new digest provider on every call
+ */
+public enum DigestAlgorithm {
+    SHA1("sha1", "SHA-1"),
+    SHA256("sha256", "SHA-256"),
+    MD5("md5", "MD5");
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    private final String alias;
+    private final String jcaName;
+    private final ThreadLocal<Worker> workers;
+
+    DigestAlgorithm(String alias, String jcaName) {
+        this.alias = alias;
+        this.jcaName = jcaName;
+        this.workers = ThreadLocal.withInitial(() -> new Worker(newDigest(jcaName)));
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public static DigestAlgorithm fromAlias(String alias) {
+        for (DigestAlgorithm algorithm : values()) {
+            if (algorithm.alias.equalsIgnoreCase(alias) || algorithm.jcaName.equalsIgnoreCase(alias)) {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported digest algorithm " + alias);
+    }
+
+    /**
+     * Digests prefix followed by value. The returned array is reused by the calling thread and is only valid
+     * until its next call.
+     */
+    byte[] digest(byte[] prefix, byte[] value) {
+        Worker worker = workers.get();
+        MessageDigest md = worker.digest;
+        md.reset();
+        md.update(prefix);
+        md.update(value);
+        try {
+            md.digest(worker.output, 0, worker.output.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        return worker.output;
+    }
+
+    /**
+     * @return lowercase hex encoded digest of the UTF-8 bytes of value
+     */
+    public String hex(String value) {
+        return toHex(digest(NO_PREFIX, value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0x0f];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+
+    private static MessageDigest newDigest(String jcaName) {
+        try {
+            return MessageDigest.getInstance(jcaName);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Worker {
+        private final MessageDigest digest;
+        private final byte[] output;
+
+        private Worker(MessageDigest digest) {
+            this.digest = digest;
+            this.output = new byte[digest.getDigestLength()];
+        }
+    }
+}
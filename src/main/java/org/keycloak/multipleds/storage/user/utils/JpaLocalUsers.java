@@ -0,0 +1,101 @@
+package org.keycloak.multipleds.storage.user.utils;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.metamodel.EntityType;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.jpa.JpaUserProvider;
+import org.keycloak.models.jpa.UserAdapter;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.storage.UserStoragePrivateUtil;
+
+/**
+ * Batch lookup of local users, by username, on the internals of Keycloak's JPA store: the {@link UserProvider} SPI
+ * has no lookup of several users at once.
+ * <p>
+ * It reads the entities that {@link JpaUserProvider#getUserByUsername} would read, through the same entity manager,
+ * and wraps them in the same {@link UserAdapter}, so that callers get the users local storage would return. Written
+ * against Keycloak 26: the entity properties and the adapter constructor it relies on are checked once, before the
+ * first lookup, and the lookup is disabled for the lifetime of the server when they are missing or when it fails.
+ * Callers then fall back to one {@link UserStoragePrivateUtil#userLocalStorage} lookup per user.
+ */
+public final class JpaLocalUsers {
+
+    private static final Logger logger = Logger.getLogger(JpaLocalUsers.class);
+    private static final String FIND_BY_USERNAMES = "select distinct u from UserEntity u left join fetch u.attributes "
+            + "where u.realmId = :realmId and u.username in :usernames";
+
+    /**
+     * Outcome of the check of Keycloak's internals, null until checked
+     */
+    private static volatile Boolean available;
+
+    private JpaLocalUsers() {
+    }
+
+    /**
+     * Local users with the given usernames, with their attributes, read with a single query
+     *
+     * @param usernames lowercase usernames, as stored by Keycloak
+     * @return local users by username, or null when they have to be looked up one by one: local storage is not
+     * Keycloak's JPA store, or its internals are not the expected ones
+     */
+    public static Map<String, UserModel> findByUsernames(KeycloakSession session, RealmModel realm, Collection<String> usernames) {
+        if (Boolean.FALSE.equals(available)) return null;
+        try {
+            if (!isJpaStore(session)) return null;
+            EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+            if (available == null) {
+                available = check(em);
+                if (!available) return null;
+            }
+            Map<String, UserModel> users = new HashMap<>();
+            if (usernames.isEmpty()) return users;
+            List<UserEntity> entities = em.createQuery(FIND_BY_USERNAMES, UserEntity.class)
+                    .setParameter("realmId", realm.getId())
+                    .setParameter("usernames", usernames)
+                    .getResultList();
+            for (UserEntity entity : entities) {
+                users.put(entity.getUsername(), new UserAdapter(session, realm, em, entity));
+            }
+            return users;
+        } catch (RuntimeException | LinkageError e) {
+            available = false;
+            logger.warn("Batch lookup of local users disabled, local users are looked up one by one", e);
+            return null;
+        }
+    }
+
+    private static boolean isJpaStore(KeycloakSession session) {
+        UserProvider localStorage = UserStoragePrivateUtil.userLocalStorage(session);
+        return localStorage != null && localStorage.getClass() == JpaUserProvider.class
+                && session.getProvider(JpaConnectionProvider.class) != null;
+    }
+
+    /**
+     * @return true if the entity properties queried and the adapter constructor used exist
+     */
+    private static boolean check(EntityManager em) {
+        try {
+            EntityType<UserEntity> entity = em.getMetamodel().entity(UserEntity.class);
+            entity.getAttribute("realmId");
+            entity.getAttribute("username");
+            entity.getAttribute("attributes");
+            UserAdapter.class.getConstructor(KeycloakSession.class, RealmModel.class, EntityManager.class, UserEntity.class);
+            return true;
+        } catch (IllegalArgumentException | NoSuchMethodException e) {
+            logger.warn("Batch lookup of local users not supported by this Keycloak version, local users are looked up one by one: "
+                    + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.keycloak.multipleds.storage.user.utils;
+
+/**
+ * Legacy password scheme used to validate and write back passwords stored in the remote datasource
+ */
+public interface PasswordHasher {
+
+    /**
+     * @param rawPassword password as typed by the user
+     * @return encoded password, as stored in the remote datasource
+     */
+    String encode(String rawPassword);
+
+    /**
+     * @param rawPassword     password as typed by the user
+     * @param encodedPassword password as stored in the remote datasource
+     * @return true if the raw password matches the encoded one
+     */
+    boolean matches(String rawPassword, String encodedPassword);
+}
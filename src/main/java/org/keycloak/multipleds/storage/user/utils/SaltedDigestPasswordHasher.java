@@ -0,0 +1,57 @@
+package org.keycloak.multipleds.storage.user.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Salted digest as produced by CakePHP Auth ({@code Security::hash($password, null, true)}): hex encoded
+ * digest of salt followed by password, SHA-1 by default
+ */
+public class SaltedDigestPasswordHasher implements PasswordHasher {
+    private static final int[] HEX_VALUES = new int[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = 10 + i;
+            HEX_VALUES['A' + i] = 10 + i;
+        }
+    }
+
+    private final DigestAlgorithm algorithm;
+    private final byte[] salt;
+
+    public SaltedDigestPasswordHasher(DigestAlgorithm algorithm, String salt) {
+        this.algorithm = algorithm;
+        this.salt = salt != null ? salt.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+
+    @Override
+    public String encode(String rawPassword) {
+        return DigestAlgorithm.toHex(algorithm.digest(salt, rawPassword.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Compares the stored hex string against the digest bytes in constant time, without encoding the digest
+     */
+    @Override
+    public boolean matches(String rawPassword, String encodedPassword) {
+        if (rawPassword == null || encodedPassword == null) return false;
+        byte[] digest = algorithm.digest(salt, rawPassword.getBytes(StandardCharsets.UTF_8));
+        if (encodedPassword.length() != digest.length * 2) return false;
+        int diff = 0;
+        for (int i = 0; i < digest.length; i++) {
+            int value = (hexValue(encodedPassword.charAt(2 * i)) << 4) | hexValue(encodedPassword.charAt(2 * i + 1));
+            diff |= value ^ (digest[i] & 0xff);
+        }
+        return diff == 0;
+    }
+
+    private static int hexValue(char c) {
+        // invalid characters yield -1, which makes the combined value negative and the comparison fail
+        return c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+    }
+}
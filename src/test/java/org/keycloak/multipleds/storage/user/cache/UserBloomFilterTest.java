@@ -0,0 +1,75 @@
+package org.keycloak.multipleds.storage.user.cache;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UserBloomFilterTest {
+
+    private static final int USERS = 100_000;
+
+    @Test
+    public void findsEveryInsertedValue() {
+        UserBloomFilter filter = new UserBloomFilter(2L * USERS, 0.01);
+        for (int i = 0; i < USERS; i++) {
+            filter.put("user" + i);
+            filter.put("user" + i + "@example.com");
+        }
+        for (int i = 0; i < USERS; i++) {
+            assertTrue("user" + i, filter.mightContain("user" + i));
+            assertTrue("user" + i + "@example.com", filter.mightContain("user" + i + "@example.com"));
+        }
+    }
+
+    @Test
+    public void findsValuesInAnyCase() {
+        UserBloomFilter filter = new UserBloomFilter(USERS, 0.01);
+        for (int i = 0; i < USERS; i++) {
+            filter.put("Mario.Rossi" + i + "@Example.COM");
+        }
+        for (int i = 0; i < USERS; i++) {
+            String email = "Mario.Rossi" + i + "@Example.COM";
+            assertTrue(email, filter.mightContain(email.toLowerCase(Locale.ROOT)));
+            assertTrue(email, filter.mightContain(email.toUpperCase(Locale.ROOT)));
+        }
+    }
+
+    @Test
+    public void keepsFalsePositiveRateNearTarget() {
+        UserBloomFilter filter = new UserBloomFilter(USERS, 0.01);
+        for (int i = 0; i < USERS; i++) {
+            filter.put("user" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < USERS; i++) {
+            if (filter.mightContain("unknown" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positive rate " + (double) falsePositives / USERS, falsePositives < USERS * 0.02);
+    }
+
+    @Test
+    public void sizesFromExpectedInsertions() {
+        // about 9.6 bits per entry at 1%
+        long size = new UserBloomFilter(1_000_000, 0.01).getSizeInBytes();
+        assertTrue("size " + size, size >= 1_190_000 && size <= 1_210_000);
+        // a lower rate needs more bits
+        assertTrue(new UserBloomFilter(1_000_000, 0.001).getSizeInBytes() > size);
+        // at least one word, even when empty
+        assertEquals(8, new UserBloomFilter(0, 0.01).getSizeInBytes());
+        // capped, whatever the number of users
+        assertEquals(UserBloomFilter.MAX_BITS / 8, new UserBloomFilter(Long.MAX_VALUE / 64, 0.01).getSizeInBytes());
+    }
+
+    @Test
+    public void ignoresNullValues() {
+        UserBloomFilter filter = new UserBloomFilter(10, 0.01);
+        filter.put(null);
+        assertFalse(filter.mightContain("user"));
+    }
+}
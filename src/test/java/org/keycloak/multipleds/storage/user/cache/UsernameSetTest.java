@@ -0,0 +1,47 @@
+package org.keycloak.multipleds.storage.user.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UsernameSetTest {
+
+    private static final int USERS = 100_000;
+
+    @Test
+    public void containsEveryAddedUsername() {
+        UsernameSet usernames = new UsernameSet();
+        assertTrue(usernames.isEmpty());
+        for (int i = 0; i < USERS; i += 2) {
+            usernames.add("user" + i);
+        }
+        assertFalse(usernames.isEmpty());
+        for (int i = 0; i < USERS; i++) {
+            if (i % 2 == 0) {
+                assertTrue("user" + i, usernames.contains("user" + i));
+            } else {
+                assertFalse("user" + i, usernames.contains("user" + i));
+            }
+        }
+    }
+
+    @Test
+    public void containsUsernamesInAnyCase() {
+        UsernameSet usernames = new UsernameSet();
+        usernames.add("Mario.Rossi");
+        assertTrue(usernames.contains("mario.rossi"));
+        assertTrue(usernames.contains("MARIO.ROSSI"));
+        assertFalse(usernames.contains(null));
+    }
+
+    @Test
+    public void acceptsAddsAfterLookups() {
+        UsernameSet usernames = new UsernameSet();
+        usernames.add("first");
+        assertFalse(usernames.contains("second"));
+        usernames.add("second");
+        assertTrue(usernames.contains("first"));
+        assertTrue(usernames.contains("second"));
+    }
+}
@@ -0,0 +1,123 @@
+package org.keycloak.multipleds.storage.user.entities;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DatasourceGuardTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        DatasourceGuard guard = new DatasourceGuard("ds", 0, 3, 60);
+        fail(guard);
+        fail(guard);
+        assertEquals(DatasourceGuard.State.CLOSED, guard.getState());
+        fail(guard);
+        assertEquals(DatasourceGuard.State.OPEN, guard.getState());
+        assertRejected(guard);
+        assertEquals(1, guard.getRejectionCount());
+    }
+
+    @Test
+    public void successResetsFailures() {
+        DatasourceGuard guard = new DatasourceGuard("ds", 0, 2, 60);
+        fail(guard);
+        assertEquals("ok", guard.call(() -> "ok"));
+        fail(guard);
+        assertEquals(DatasourceGuard.State.CLOSED, guard.getState());
+        fail(guard);
+        assertEquals(DatasourceGuard.State.OPEN, guard.getState());
+    }
+
+    @Test
+    public void halfOpenTrialClosesOnSuccess() {
+        DatasourceGuard guard = new DatasourceGuard("ds", 0, 1, 0);
+        fail(guard);
+        assertEquals(DatasourceGuard.State.OPEN, guard.getState());
+        // the open interval elapsed, a single trial query goes through
+        guard.call(() -> {
+            assertEquals(DatasourceGuard.State.HALF_OPEN, guard.getState());
+            assertRejected(guard);
+            return null;
+        });
+        assertEquals(DatasourceGuard.State.CLOSED, guard.getState());
+        assertEquals("ok", guard.call(() -> "ok"));
+    }
+
+    @Test
+    public void halfOpenTrialReopensOnFailure() {
+        DatasourceGuard guard = new DatasourceGuard("ds", 0, 5, 0);
+        for (int i = 0; i < 5; i++) {
+            fail(guard);
+        }
+        assertEquals(DatasourceGuard.State.OPEN, guard.getState());
+        // a single failed trial opens the breaker again, whatever the threshold
+        fail(guard);
+        assertEquals(DatasourceGuard.State.OPEN, guard.getState());
+    }
+
+    @Test
+    public void staysOpenUntilIntervalElapsed() {
+        DatasourceGuard guard = new DatasourceGuard("ds", 0, 1, 60);
+        fail(guard);
+        for (int i = 0; i < 10; i++) {
+            assertRejected(guard);
+        }
+        assertEquals(DatasourceGuard.State.OPEN, guard.getState());
+        assertEquals(10, guard.getRejectionCount());
+    }
+
+    @Test
+    public void rejectsQueriesAboveConcurrencyLimit() {
+        DatasourceGuard guard = new DatasourceGuard("ds", 1, 1, 60);
+        guard.call(() -> {
+            assertRejected(guard);
+            return null;
+        });
+        assertEquals(1, guard.getRejectionCount());
+        // rejections are not failures and the permit was released
+        assertEquals(DatasourceGuard.State.CLOSED, guard.getState());
+        assertEquals("ok", guard.call(() -> "ok"));
+    }
+
+    @Test
+    public void releasesPermitOnFailure() {
+        DatasourceGuard guard = new DatasourceGuard("ds", 1, 0, 60);
+        for (int i = 0; i < 3; i++) {
+            fail(guard);
+        }
+        assertEquals("ok", guard.call(() -> "ok"));
+    }
+
+    @Test
+    public void neverOpensWithoutThreshold() {
+        DatasourceGuard guard = new DatasourceGuard("ds", 0, 0, 60);
+        for (int i = 0; i < 100; i++) {
+            fail(guard);
+        }
+        assertEquals(DatasourceGuard.State.CLOSED, guard.getState());
+        assertEquals(0, guard.getRejectionCount());
+    }
+
+    private static void fail(DatasourceGuard guard) {
+        try {
+            guard.call(() -> {
+                throw new IllegalStateException("timeout");
+            });
+            org.junit.Assert.fail("query did not fail");
+        } catch (IllegalStateException expected) {
+            // counted by the breaker
+        }
+    }
+
+    private static void assertRejected(DatasourceGuard guard) {
+        try {
+            guard.call(() -> {
+                throw new AssertionError("rejected query must not run");
+            });
+            org.junit.Assert.fail("query not rejected");
+        } catch (DatasourceUnavailableException expected) {
+            // rejected
+        }
+    }
+}
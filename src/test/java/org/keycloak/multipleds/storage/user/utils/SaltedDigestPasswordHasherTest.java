@@ -0,0 +1,114 @@
+package org.keycloak.multipleds.storage.user.utils;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link SaltedDigestPasswordHasher} accepts the hashes stored by the legacy application, as produced by
+ * CakePHP and by the former {@code SHA1Utils}
+ */
+public class SaltedDigestPasswordHasherTest {
+
+    // CakePHP default Security.salt
+    private static final String SALT = "DYhG93b0qyJfIxfs2guVoUubWwvniR2G0FgaC9mi";
+
+    // hex digests of SALT + password, computed outside of Java
+    private static final Object[][] LEGACY_HASHES = {
+            {DigestAlgorithm.SHA1, "password", "b728f8c1ca12884d3b105bd23cb091ca978bb375"},
+            {DigestAlgorithm.SHA1, "Pa55w0rd!", "7deff3d08eb2f5360a6659c1fe0bfb79091b9fad"},
+            {DigestAlgorithm.SHA1, "p\u00e4ssw\u00f6rd", "76ba42e42eeea950a027ae465a7139af67e491e8"},
+            {DigestAlgorithm.SHA256, "password", "bc53aed29c32834608fc527861d50dfe415d4a2cf8d77e11126d575ac2fa7096"},
+            {DigestAlgorithm.SHA256, "Pa55w0rd!", "e674275ed272c3b7bd209e49b0640461e2dce6a83be15a13e5e115f4670f2066"},
+            {DigestAlgorithm.SHA256, "p\u00e4ssw\u00f6rd", "e92a6f868e4874f5abeba0afe8ba889237d71ad813e39895c7e00ee2a1c4d95d"},
+            {DigestAlgorithm.MD5, "password", "31dbc03461319261a55d6593d277d9a5"},
+            {DigestAlgorithm.MD5, "Pa55w0rd!", "21e4ad64e1a5934321e2ad47e8ef5460"},
+            {DigestAlgorithm.MD5, "p\u00e4ssw\u00f6rd", "c03cb598d9cfb8b5b3882100f8d06680"},
+    };
+
+    @Test
+    public void encodesLegacyHashes() {
+        for (Object[] hash : LEGACY_HASHES) {
+            PasswordHasher hasher = new SaltedDigestPasswordHasher((DigestAlgorithm) hash[0], SALT);
+            assertEquals(hash[0] + " " + hash[1], hash[2], hasher.encode((String) hash[1]));
+        }
+    }
+
+    @Test
+    public void matchesLegacyHashesInAnyCase() {
+        for (Object[] hash : LEGACY_HASHES) {
+            PasswordHasher hasher = new SaltedDigestPasswordHasher((DigestAlgorithm) hash[0], SALT);
+            String encoded = (String) hash[2];
+            assertTrue(hash[0] + " " + hash[1], hasher.matches((String) hash[1], encoded));
+            assertTrue(hash[0] + " " + hash[1], hasher.matches((String) hash[1], encoded.toUpperCase(Locale.ROOT)));
+            assertFalse(hash[0] + " " + hash[1], hasher.matches(hash[1] + " ", encoded));
+        }
+    }
+
+    @Test
+    public void matchesFormerSha1Utils() throws Exception {
+        PasswordHasher hasher = new SaltedDigestPasswordHasher(DigestAlgorithm.SHA1, SALT);
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            String password = randomPassword(random);
+            String legacy = sha1UtilsEncodeWithSalt(password, SALT);
+            assertEquals(password, legacy, hasher.encode(password));
+            assertTrue(password, hasher.matches(password, legacy));
+        }
+    }
+
+    @Test
+    public void withoutSalt() {
+        PasswordHasher hasher = new SaltedDigestPasswordHasher(DigestAlgorithm.SHA1, null);
+        assertEquals("5baa61e4c9b93f3f0682250b6cf8331b7ee68fd8", hasher.encode("password"));
+    }
+
+    @Test
+    public void rejectsMalformedHashes() {
+        PasswordHasher hasher = new SaltedDigestPasswordHasher(DigestAlgorithm.SHA1, SALT);
+        String encoded = "b728f8c1ca12884d3b105bd23cb091ca978bb375";
+        assertFalse(hasher.matches("password", null));
+        assertFalse(hasher.matches(null, encoded));
+        assertFalse(hasher.matches("password", encoded.substring(1)));
+        assertFalse(hasher.matches("password", encoded + "0"));
+        assertFalse(hasher.matches("password", "g" + encoded.substring(1)));
+        assertFalse(hasher.matches("password", "\u00e9" + encoded.substring(1)));
+    }
+
+    @Test
+    public void resolvesAliases() {
+        assertEquals(DigestAlgorithm.SHA1, DigestAlgorithm.fromAlias("sha1"));
+        assertEquals(DigestAlgorithm.SHA1, DigestAlgorithm.fromAlias("SHA-1"));
+        assertEquals(DigestAlgorithm.SHA256, DigestAlgorithm.fromAlias("sha256"));
+        assertEquals(DigestAlgorithm.MD5, DigestAlgorithm.fromAlias("MD5"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownAlias() {
+        DigestAlgorithm.fromAlias("sha512");
+    }
+
+    /**
+     * Encoding of the former SHA1Utils, kept as the reference for the hashes already stored
+     */
+    private static String sha1UtilsEncodeWithSalt(String rawPassword, String salt) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        md.update((salt + rawPassword).getBytes("UTF-8"));
+        return String.format("%040x", new BigInteger(1, md.digest()));
+    }
+
+    private static String randomPassword(Random random) {
+        char[] password = new char[1 + random.nextInt(32)];
+        for (int i = 0; i < password.length; i++) {
+            password[i] = (char) (' ' + random.nextInt('~' - ' ' + 1));
+        }
+        return new String(password);
+    }
+}